@@ -0,0 +1,271 @@
+package my_bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Starts a cluster of several chat servers on this machine, each one in its own JVM (see ClusterNode), and checks that
+ * the messages cross the nodes.
+ *
+ * Node i is "node<i>", its cluster link listens on 127.0.0.1:(port + i), its clients connect to the port it prints, and it
+ * keeps its files in data/node<i>. All the nodes get the same random chat.cluster.secret. Their output is printed here,
+ * each line behind the id of its node.
+ *
+ * Once they are up, the check logs in one user per node (harness<i>, registered if needed), sends a direct message from
+ * node0 to every other node and one message to a topic they all joined, and prints what arrived where. Then the nodes
+ * keep running until Enter is pressed (or this process is stopped), for manual tests or for a LoadGenerator per node.
+ *
+ * <pre>
+ * Usage: java my_bench.ClusterHarness [nodes=3] [port=7100] [data=(a temporary directory)] [mode=thread] [check=true]
+ *        (with the classes of the server on the class path: the nodes are started with the same one)
+ * </pre>
+ *
+ * @author Fares Abu Ali
+ */
+public class ClusterHarness {
+
+    private static final Pattern PORT_LINE = Pattern.compile("port: (\\d+)");
+    private static final long START_TIMEOUT_SECONDS = 30;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+    private int nodes = 3;
+    private int clusterPort = 7100;
+    private Path dataDirectory;
+    private String mode = "thread";
+    private boolean check = true;
+
+    private final List<Process> processes = new ArrayList<>();
+    private final List<CompletableFuture<Integer>> clientPorts = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        ClusterHarness harness = new ClusterHarness();
+        for (String arg : args) {
+            harness.setOption(arg);
+        }
+        if (harness.nodes < 2) {
+            System.err.println("Usage: java my_bench.ClusterHarness [nodes=3] [port=7100] [data=dir] [mode=thread|nio] [check=true]");
+            System.exit(1);
+        }
+        harness.run();
+    }// end main
+
+    private void setOption(String arg) {
+        String[] pair = arg.split("=", 2);
+        String value = (pair.length > 1) ? pair[1] : "";
+
+        switch (pair[0]) {
+            case "nodes":
+                nodes = Integer.parseInt(value);
+                break;
+            case "port":
+                clusterPort = Integer.parseInt(value);
+                break;
+            case "data":
+                dataDirectory = Path.of(value);
+                break;
+            case "mode":
+                mode = value;
+                break;
+            case "check":
+                check = Boolean.parseBoolean(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + arg);
+        }
+    }// end method
+
+    private void run() throws Exception {
+        if (dataDirectory == null) {
+            dataDirectory = Files.createTempDirectory("chat-cluster");
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopNodes, "stop-nodes"));
+
+        byte[] secret = new byte[16];
+        new SecureRandom().nextBytes(secret);
+        for (int i = 0; i < nodes; i++) {
+            startNode(i, HexFormat.of().formatHex(secret));
+        }
+
+        int[] ports = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            ports[i] = clientPorts.get(i).get(START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            System.out.println("node" + i + ": clients on port " + ports[i] + ", cluster link on 127.0.0.1:" + (clusterPort + i));
+        }
+        System.out.println("data: " + dataDirectory);
+
+        if (check) {
+            check(ports);
+        }
+
+        System.out.println("Press Enter to stop the nodes.");
+        System.in.read();
+    }// end method
+
+    private void startNode(int node, String secret) throws IOException {
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            if (i != node) {
+                peers.append(peers.length() > 0 ? "," : "").append("node").append(i).append("@127.0.0.1:").append(clusterPort + i);
+            }
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dchat.cluster.node=node" + node);
+        command.add("-Dchat.cluster.port=" + (clusterPort + node));
+        command.add("-Dchat.cluster.peers=" + peers);
+        command.add("-Dchat.cluster.secret=" + secret);
+        command.add("-Dchat.data.dir=" + dataDirectory.resolve("node" + node));
+        command.add("-Dchat.auth.iterations=1000"); // the users of the check aren't worth a slow hash
+        command.add("my_server.ServerStarter");
+        command.add(mode);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        processes.add(process);
+
+        // Its output, behind its id. The first "port: N" is the port of its clients:
+        CompletableFuture<Integer> clientPort = new CompletableFuture<>();
+        clientPorts.add(clientPort);
+        Thread output = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.out.println("[node" + node + "] " + line);
+                    Matcher matcher = PORT_LINE.matcher(line);
+                    if (!clientPort.isDone() && matcher.find()) {
+                        clientPort.complete(Integer.parseInt(matcher.group(1)));
+                    }
+                }
+            } catch (IOException ex) {
+                // the node has stopped
+            }
+            clientPort.completeExceptionally(new IOException("node" + node + " stopped before listening"));
+        }, "node" + node + "-output");
+        output.setDaemon(true);
+        output.start();
+    }// end method
+
+    private void stopNodes() {
+        for (Process process : processes) {
+            process.destroy(); // a SIGTERM: the node drains
+        }
+        for (Process process : processes) {
+            try {
+                process.waitFor(15, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }// end method
+
+    //=================================================
+    // The check:
+
+    private void check(int[] ports) throws IOException, InterruptedException {
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            Client client = new Client(ports[i]);
+            clients.add(client);
+            client.send("register harness" + i + " pw"); // "error register" when it is already there, that's fine
+            client.send("login harness" + i + " pw");
+            client.expect("ok login");
+            client.send("join #harness");
+        }
+
+        // The links come up and the users show up on the other nodes in the background, so each user waits to see the others:
+        for (int i = 0; i < nodes; i++) {
+            for (int j = 0; j < nodes; j++) {
+                if (i != j) {
+                    clients.get(i).expect("online harness" + j);
+                }
+            }
+        }
+
+        int failed = 0;
+        for (int i = 1; i < nodes; i++) {
+            clients.get(0).send("msg harness" + i + " hello from node0");
+            if (!clients.get(i).expect("harness0: hello from node0")) {
+                failed++;
+            }
+        }
+        clients.get(0).send("msg #harness hello everyone");
+        for (int i = 1; i < nodes; i++) {
+            if (!clients.get(i).expect("msg #harness:harness0 hello everyone")) {
+                failed++;
+            }
+        }
+
+        for (Client client : clients) {
+            client.close();
+        }
+        System.out.println(failed == 0 ? "check: the direct and topic messages crossed all the nodes"
+                : "check: " + failed + " messages did not arrive");
+    }// end method
+
+    // One text client of the check.
+    private static final class Client {
+
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final OutputStream out;
+        private final Set<String> skipped = new HashSet<>(); // read while expecting another line
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+        }// end constructor
+
+        void send(String line) throws IOException {
+            out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }// end method
+
+        // Reads until that line arrives (in any order with the others). Returns false if it didn't within READ_TIMEOUT_MILLIS.
+        boolean expect(String expected) throws IOException {
+            if (skipped.remove(expected)) {
+                return true;
+            }
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals(expected)) {
+                        return true;
+                    }
+                    skipped.add(line);
+                }
+            } catch (SocketTimeoutException ex) {
+                // not arrived
+            }
+            System.out.println("check: \"" + expected + "\" did not arrive");
+            return false;
+        }// end method
+
+        void close() throws IOException {
+            send("logoff");
+            socket.close();
+        }// end method
+    }// end class
+
+}// end class
@@ -0,0 +1,228 @@
+package my_bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import my_client.ClientProcessor;
+import my_server.CommandDecoder;
+import my_server.MyServer;
+import my_server.ServerConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the hot paths of the server, for 10 up to 100k logged in users:
+ *
+ * <pre>
+ *     readLine          cutting and parsing the next command line of a client (CommandDecoder, as in processClientSocket)
+ *     directMessage     'msg UserN text' through processCommand(): the parse, the session lookup and the recipient's queue
+ *     topicMessage      'msg #room text' through processCommand(), to a topic all the users joined
+ *     broadcastMessage  'msg-broadcast text' through processCommand(), to all the online users
+ * </pre>
+ *
+ * The users are real ClientProcessors, registered and logged in with the normal commands, on unconnected sockets: their
+ * writer is the benchmark itself, which empties the outbound queues like the NIO event loops would (after every fan-out,
+ * outside of the measured time). So every message goes through the same queue path, never through the overflow policy.
+ *
+ * The server keeps its users in memory and its files in a temporary directory (deleted at the end), without history,
+ * mailboxes or snapshot, and the fan-outs are delivered on the benchmark thread (chat.fanout.threshold=0).
+ *
+ * <pre>
+ * Usage: mvn -Pbench package && java -jar target/benchmarks.jar HotPathBenchmark [-p users=10,1000]
+ *        (or java my_bench.HotPathBenchmark, with the JMH jars on the class path)
+ * </pre>
+ *
+ * @author Fares Abu Ali
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotPathBenchmark {
+
+    // How many different recipients the direct messages go to, in turn:
+    private static final int DM_RECIPIENTS = 1024;
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int users;
+
+    private Path dataDirectory;
+    private MyServer server;
+    private ClientProcessor[] clients;
+    private ClientProcessor sender;
+
+    private final CommandDecoder decoder = new CommandDecoder(4096);
+    private InputStream lines;
+
+    private byte[][] dmLines;
+    private ClientProcessor[] dmRecipients;
+    private int nextDm;
+
+    private byte[] topicLine;
+    private byte[] broadcastLine;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        dataDirectory = Files.createTempDirectory("chat-bench");
+        System.setProperty("chat.data.dir", dataDirectory.toString());
+        System.setProperty("chat.users.store", "memory");
+        System.setProperty("chat.auth.iterations", "1"); // the logins of the setup aren't measured
+        System.setProperty("chat.history", "false");
+        System.setProperty("chat.mailbox", "false");
+        System.setProperty("chat.warm.restart", "false");
+        System.setProperty("chat.fanout.threshold", "0");
+        server = new MyServer(0, new ServerConfig());
+
+        clients = new ClientProcessor[users];
+        for (int i = 0; i < users; i++) {
+            clients[i] = new ClientProcessor(server, new Socket(), () -> {
+                // no event loop to wake up: drain() is the writer
+            });
+            command(clients[i], "presence off"); // the online lines of 100k users aren't what we measure
+            command(clients[i], "register User" + i + " pw");
+            command(clients[i], "login User" + i + " pw");
+            command(clients[i], "join #room");
+        }
+        sender = clients[0];
+        drain();
+
+        dmLines = new byte[DM_RECIPIENTS][];
+        dmRecipients = new ClientProcessor[DM_RECIPIENTS];
+        for (int i = 0; i < DM_RECIPIENTS; i++) {
+            int recipient = (int) ((i * 7919L) % users);
+            dmLines[i] = ascii("msg User" + recipient + " Hello, how are you today?");
+            dmRecipients[i] = clients[recipient];
+        }
+        topicLine = ascii("msg #room Hello everyone");
+        broadcastLine = ascii("msg-broadcast Hello everyone");
+        lines = new RepeatingStream(ascii("msg User42 Hello, how are you today?\r\n"));
+    }// end method
+
+    @TearDown(Level.Trial)
+    public void deleteDataDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }// end method
+
+    // Runs one command line of 'client' through the real handler, and waits for its login/register to complete.
+    private void command(ClientProcessor client, String line) throws IOException {
+        byte[] bytes = ascii(line);
+        decoder.parse(bytes, 0, bytes.length);
+        client.processCommand(decoder);
+
+        CompletableFuture<Void> authentication = client.takePendingAuthentication();
+        if (authentication != null) {
+            authentication.join();
+        }
+    }// end method
+
+    // What the writers do: takes every queued message.
+    private void drain() {
+        for (ClientProcessor client : clients) {
+            while (client.getOutboundQueue().poll() != null) {
+                // written
+            }
+        }
+    }// end method
+
+    @Benchmark
+    public CommandDecoder.Command readLine() throws IOException {
+        decoder.readLine(lines);
+        return decoder.getCommand();
+    }// end method
+
+    @Benchmark
+    public byte[] directMessage() throws IOException {
+        int i = nextDm;
+        nextDm = (i + 1) % DM_RECIPIENTS;
+
+        decoder.parse(dmLines[i], 0, dmLines[i].length);
+        sender.processCommand(decoder);
+        return dmRecipients[i].getOutboundQueue().poll(); // one message: its writer's part is measured too
+    }// end method
+
+    @Benchmark
+    public void topicMessage(Drained drained) throws IOException {
+        decoder.parse(topicLine, 0, topicLine.length);
+        sender.processCommand(decoder);
+    }// end method
+
+    @Benchmark
+    public void broadcastMessage(Drained drained) throws IOException {
+        decoder.parse(broadcastLine, 0, broadcastLine.length);
+        sender.processCommand(decoder);
+    }// end method
+
+    // The fan-out benchmarks use it: the queues are emptied after every message, outside of the measured time.
+    @State(Scope.Benchmark)
+    public static class Drained {
+
+        @TearDown(Level.Invocation)
+        public void drain(HotPathBenchmark benchmark) {
+            benchmark.drain();
+        }
+    }// end class
+
+    // The same bytes over and over, so readLine() never reaches the end of the stream.
+    private static final class RepeatingStream extends InputStream {
+
+        private final byte[] block;
+        private int position;
+
+        RepeatingStream(byte[] line) {
+            // A block of whole lines, about the size of a read:
+            int count = Math.max(1, 8192 / line.length);
+            block = new byte[count * line.length];
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(line, 0, block, i * line.length, line.length);
+            }
+        }
+
+        @Override
+        public int read() {
+            int b = block[position] & 0xFF;
+            position = (position + 1) % block.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            int count = Math.min(length, block.length - position);
+            System.arraycopy(block, position, bytes, offset, count);
+            position = (position + count) % block.length;
+            return count;
+        }
+    }// end class
+
+    private static byte[] ascii(String line) {
+        return line.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(HotPathBenchmark.class.getSimpleName()).build()).run();
+    }// end main
+
+}// end class
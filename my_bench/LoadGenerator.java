@@ -0,0 +1,310 @@
+package my_bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import my_server.LatencyHistogram;
+
+/**
+ * Loopback load generator: connects many chat users to a running server, sends a mix of direct, topic and broadcast
+ * messages at a fixed rate, and measures how long every message takes to be delivered.
+ *
+ * Every message carries the time it was sent ("t=<nanoTime>"), and the receiving side (in the same process, so on the
+ * same clock) records the difference in a LatencyHistogram. All the connections are read by one selector thread, so
+ * thousands of users don't need thousands of threads here either.
+ *
+ * <pre>
+ * Usage: java my_bench.LoadGenerator port=12345 [host=localhost] [users=100] [topics=10] [seconds=30] [rate=1000]
+ *                                    [dm=70] [topic=20] [broadcast=10] [senders=4] [logins=32]
+ * </pre>
+ *
+ * 'rate' is the total number of messages sent per second, and dm/topic/broadcast the share (in percent) of each kind.
+ *
+ * The users benchN login with the password "pw", and are only registered when the login fails (the first run against a
+ * server). At most 'logins' of them (default 32) wait for their password check at a time, so a big run doesn't overflow
+ * the auth queue of the server. Every registration is a password hash, and a write to disk with the file store: for
+ * thousands of users start the server with -Dchat.users.store=memory -Dchat.data.dir=/tmp/chat-bench
+ * -Dchat.auth.iterations=1000, so the bench users aren't hashed 100k times each nor kept on disk.
+ *
+ * @author Fares Abu Ali
+ */
+public class LoadGenerator {
+
+    private String host = "localhost";
+    private int port = -1;
+    private int users = 100;
+    private int topics = 10;
+    private int seconds = 30;
+    private int rate = 1000;
+    private int dmShare = 70;
+    private int topicShare = 20;
+    private int broadcastShare = 10;
+    private int senders = 4;
+    private int loginWindow = 32;
+
+    private SocketChannel[] channels;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong loggedIn = new AtomicLong();
+    private final AtomicInteger nextLogin = new AtomicInteger();
+    private volatile boolean measuring = false;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            generator.setOption(arg);
+        }
+        if (generator.port < 0) {
+            System.err.println("Usage: java my_bench.LoadGenerator port=<server port> [users=100] [topics=10] [seconds=30]"
+                    + " [rate=1000] [dm=70] [topic=20] [broadcast=10] [senders=4] [logins=32] [host=localhost]");
+            System.exit(1);
+        }
+        generator.run();
+    }// end main
+
+    private void setOption(String arg) {
+        String[] pair = arg.split("=", 2);
+        String value = (pair.length > 1) ? pair[1] : "";
+
+        switch (pair[0]) {
+            case "host":
+                host = value;
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "users":
+                users = Integer.parseInt(value);
+                break;
+            case "topics":
+                topics = Integer.parseInt(value);
+                break;
+            case "seconds":
+                seconds = Integer.parseInt(value);
+                break;
+            case "rate":
+                rate = Integer.parseInt(value);
+                break;
+            case "dm":
+                dmShare = Integer.parseInt(value);
+                break;
+            case "topic":
+                topicShare = Integer.parseInt(value);
+                break;
+            case "broadcast":
+                broadcastShare = Integer.parseInt(value);
+                break;
+            case "senders":
+                senders = Integer.parseInt(value);
+                break;
+            case "logins":
+                loginWindow = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + arg);
+        }
+    }// end method
+
+    private void run() throws Exception {
+        Selector selector = Selector.open();
+        channels = new SocketChannel[users];
+        senders = Math.min(senders, users);
+
+        System.out.println("Connecting " + users + " users to " + host + ":" + port + " ..");
+        for (int i = 0; i < users; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            channels[i] = channel;
+        }
+        for (int i = 0; i < users; i++) {
+            channels[i].register(selector, SelectionKey.OP_READ, new User(i));
+        }
+
+        Thread reader = new Thread(() -> readLoop(selector), "load-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        // The next logins are started by the reader, one for every login that completes:
+        for (int i = 0; i < Math.min(loginWindow, users); i++) {
+            startNextLogin();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (loggedIn.get() < users && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        System.out.println(loggedIn.get() + " users logged in. Sending " + rate + " msg/s for " + seconds + " s (dm="
+                + dmShare + "% topic=" + topicShare + "% broadcast=" + broadcastShare + "%)");
+
+        measuring = true;
+        long start = System.nanoTime();
+
+        Thread[] senderThreads = new Thread[senders];
+        for (int s = 0; s < senders; s++) {
+            int senderIndex = s;
+            senderThreads[s] = new Thread(() -> sendLoop(senderIndex, start), "load-sender-" + s);
+            senderThreads[s].start();
+        }
+        for (Thread thread : senderThreads) {
+            thread.join();
+        }
+
+        Thread.sleep(1000); // let the last messages arrive
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("sent:      %d messages (%.0f msg/s)%n", sent.get(), sent.get() / elapsed);
+        System.out.printf("delivered: %d messages (%.0f msg/s)%n", latency.getCount(), latency.getCount() / elapsed);
+        System.out.println("latency (us): " + latency.summary(1000));
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }// end method
+
+    // Sender 's' uses the users s, s + senders, s + 2 * senders .. so two senders never write on the same channel.
+    private void sendLoop(int s, long start) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        double intervalNanos = 1e9 * senders / rate;
+        long count = 0;
+
+        try {
+            while (true) {
+                long due = start + (long) (count * intervalNanos);
+                if (due >= end) {
+                    break;
+                }
+                long now;
+                while ((now = System.nanoTime()) < due) {
+                    Thread.onSpinWait();
+                }
+
+                int from = s + senders * random.nextInt(Math.max(1, (users - s + senders - 1) / senders));
+                int kind = random.nextInt(100);
+                String line;
+
+                if (kind < dmShare) {
+                    line = "msg bench" + random.nextInt(users) + " t=" + now + "\r\n";
+                } else if (kind < dmShare + topicShare) {
+                    line = "msg #bench" + (from % topics) + " t=" + now + "\r\n";
+                } else {
+                    line = "msg-broadcast t=" + now + "\r\n";
+                }
+
+                write(channels[from], line);
+                sent.incrementAndGet();
+                count++;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }// end method
+
+    private void readLoop(Selector selector) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    buffer.clear();
+                    if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    buffer.flip();
+                    long now = System.nanoTime();
+
+                    User user = (User) key.attachment();
+                    user.partial.append(StandardCharsets.UTF_8.decode(buffer));
+
+                    int lineEnd;
+                    while ((lineEnd = user.partial.indexOf("\n")) >= 0) {
+                        received(user, user.partial.substring(0, lineEnd).trim(), now);
+                        user.partial.delete(0, lineEnd + 1);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            // the channels were closed at the end of the run
+        }
+    }// end method
+
+    private void received(User user, String line, long now) throws IOException {
+        if (line.equals("ok login")) {
+            write(channels[user.index], "join #bench" + (user.index % topics) + "\r\n");
+            loggedIn.incrementAndGet();
+            startNextLogin();
+            return;
+        }
+        if (line.equals("error login")) {
+            if (user.registering) {
+                // Registered by somebody else with another password: this one stays offline.
+                System.err.println("bench" + user.index + " can't login");
+                startNextLogin();
+            } else {
+                // Not registered yet (the first run against this server):
+                user.registering = true;
+                write(channels[user.index], "register bench" + user.index + " pw\r\nlogin bench" + user.index + " pw\r\n");
+            }
+            return;
+        }
+        if (line.startsWith("error login.") || line.startsWith("error register. The server is busy")) {
+            write(channels[user.index], "login bench" + user.index + " pw\r\n"); // busy: try again
+            return;
+        }
+
+        int t = line.lastIndexOf("t=");
+        if (measuring && t >= 0) {
+            try {
+                latency.record(now - Long.parseLong(line.substring(t + 2)));
+            } catch (NumberFormatException ex) {
+                // not one of our messages
+            }
+        }
+    }// end method
+
+    private void startNextLogin() throws IOException {
+        int i = nextLogin.getAndIncrement();
+        if (i < users) {
+            write(channels[i], "login bench" + i + " pw\r\n");
+        }
+    }// end method
+
+    // What the reader keeps for every connection:
+    private static final class User {
+
+        private final int index;
+        private final StringBuilder partial = new StringBuilder();
+        private boolean registering; // (the reader thread only)
+
+        User(int index) {
+            this.index = index;
+        }
+    }// end class
+
+    private static void write(SocketChannel channel, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                Thread.onSpinWait(); // the socket buffer is full, the server is not reading fast enough
+            }
+        }
+    }// end method
+
+}// end class
@@ -1,15 +1,47 @@
 package my_client;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+import my_server.Acceptor;
+import my_server.BinaryProtocol;
+import my_server.ChatMessage;
+import my_server.ClusterNode;
+import my_server.CommandDecoder;
+import my_server.FanoutShards;
+import my_server.FrameDecoder;
 import my_server.MyServer;
-import org.apache.commons.lang3.StringUtils;
+import my_server.OfflineMailbox;
+import my_server.OutboundQueue;
+import my_server.ServerConfig;
+import my_server.ServerMetrics;
+import my_server.SessionSnapshot;
+import my_server.SharedLines;
+import my_server.SubscriptionTrie;
+import my_server.SymbolTable;
+import my_server.TimerWheel;
+import my_server.TopicLog;
 
 /**
  *
@@ -18,28 +50,113 @@ import org.apache.commons.lang3.StringUtils;
 
 /*
     We want the server to be able to handle multiple clients, so we don't want a single client to block the
-    server until it finishes. So we create individual thread for each client, and handle it separately.
+    server until it finishes. So we run each client separately: on its own platform thread, on its own virtual thread,
+    or on one of the NIO event loops (depending on the mode the server was started with).
 
     This allows the server to handle multiple clients concurrently.
  */
-public class ClientProcessor extends Thread {
+public class ClientProcessor implements Runnable, TimerWheel.Timeout {
+
+    private static final Logger LOG = Logger.getLogger(ClientProcessor.class.getName());
+
+    // How many messages 'history #topic n' sends at most (and without n):
+    private static final int MAX_HISTORY = 1000;
+    private static final int DEFAULT_HISTORY = 20;
+
+    // When our earlier messages are still in the fan-out shards (see FanoutShards.MAX_PENDING):
+    private static final String FANOUT_BUSY = "error msg. Your last messages are still being delivered, try again later\n\r";
+
+    // How many names one binary connection may INTERN:
+    private static final int MAX_INTERNS = 10_000;
+
+    // The goodbye of a stopping server, one array for everybody (so the snapshot can recognize it in the queues):
+    private static final byte[] DRAIN_NOTICE = "error server restarting. Bye\n\r".getBytes(StandardCharsets.UTF_8);
 
     private final Socket clientSocket;
     private final MyServer server;
+    private final ServerMetrics metrics;
 
-    private String login = null; // to store the username for this client
+    private volatile String login = null; // to store the username for this client (read by the other clients threads too)
 
     private OutputStream outputStream;
 
+    /*
+        Nobody writes on our outputStream directly: the other clients (send()) and our own replies only put the messages in this queue,
+        and a single writer drains it. So a sender never waits for a slow reader, and the messages are never interleaved.
+     */
+    private final OutboundQueue outboundQueue;
+
+    /*
+        In the NIO mode the event loop is the writer of the queue, and this asks it to flush.
+        In the other modes it is null, and we drain the queue ourselves on the server's writer executor.
+     */
+    private final Runnable flushRequest;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    // How many of our messages the fan-out shards still have to deliver (our next fan-outs must wait behind them):
+    private final AtomicInteger pendingFanouts = new AtomicInteger();
+
+    // The acceptor whose shard of the connections this client is in (set by the server before it runs):
+    private Acceptor acceptor;
+
+    // Set on logoff/deregister/disconnect: the socket is closed once the queued messages are written.
+    private volatile boolean closeRequested = false;
+
+    /*
+        A login or register whose password is still being hashed on the authenticator's threads (or a deregister being
+        written there). The reader of this client must wait for it before the next command (i.e. a 'msg' sent right after
+        'login'), see takePendingAuthentication().
+     */
+    private CompletableFuture<Void> pendingAuthentication;
+
+    // 'presence off': this client doesn't want the online/offline/deregistered lines (read by the presence thread).
+    private volatile boolean presenceEnabled = true;
+
+    /*
+        The binary protocol (see BinaryProtocol), once the client has sent 'binary'. From then on everything queued for this
+        client is a frame. Deciding the encoding and queueing happen with the outboundLock, so no text line can slip in after
+        the switch, and a NAME frame is always queued before the first frame using its id.
+     */
+    private volatile boolean binary;
+    private final ReentrantLock outboundLock = new ReentrantLock();
+    private BitSet knownSymbols; // the ids whose name has been sent to this client (with the outboundLock)
+    private volatile byte[] dictionary; // null if the frames are not compressed
+    private Inflater inflater; // for the compressed frames of this client (only used by the thread reading them)
+    private byte[] inflated;
+    private int internCount; // the INTERN frames answered (only used by the thread reading them)
+
     /*
        - Each 'ClientProcessor' instance will has its own topicSet that stores which topics this current client (ClientProcessor) is            joined to.
        - So this set can be used to check wether this client is joined to a specific topic or not.
      */
-    private HashSet<String> topicSet = new HashSet<>();
+    // (a concurrent set: a timeout may log this client off on the timer thread while he is joining a topic)
+    private final Set<String> topicSet = ConcurrentHashMap.newKeySet();
+
+    /*
+        For the timeouts (see expire()): when the connection was accepted, and when the client sent his last command.
+        The timer wheel reads them, the reading thread only writes lastRead.
+     */
+    private final long connectedAt = System.currentTimeMillis();
+    private volatile long lastRead = connectedAt;
+    private long lastPing; // the last heartbeat: unanswered while lastRead is older (the timer thread only)
+    private boolean evicted; // (the timer thread only)
 
     public ClientProcessor(MyServer server, Socket clientSocket) {
+        this(server, clientSocket, null);
+    }
+
+    /*
+        Used by the NIO event loops: there the 'clientSocket' is only the adaptor of a non-blocking SocketChannel, so we can't
+        write to clientSocket.getOutputStream(). Instead the event loop writes our outboundQueue itself when 'flushRequest' is run.
+     */
+    public ClientProcessor(MyServer server, Socket clientSocket, Runnable flushRequest) {
         this.server = server;
         this.clientSocket = clientSocket;
+        this.flushRequest = flushRequest;
+        this.metrics = server.getMetrics();
+
+        ServerConfig config = server.getConfig();
+        this.outboundQueue = new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(), config.getLaneWeights(), metrics);
     }
 
     @Override
@@ -48,188 +165,434 @@ public class ClientProcessor extends Thread {
         try {
             processClientSocket();
         } catch (IOException ex) {
-            ex.printStackTrace();
+            LOG.log(Level.FINE, "Connection of " + login + " lost", ex);
         } catch (InterruptedException ex) {
-            ex.printStackTrace();
+            Thread.currentThread().interrupt();
+        } finally {
+            // Whatever the reason we stopped reading (logoff, deregister or the connection dropped), forget this client:
+            server.removeClientProcess(this);
+            closeGracefully();
         }
     }// end run
 
     private void processClientSocket() throws IOException, InterruptedException {
 
         InputStream inputStream = clientSocket.getInputStream();
-        this.outputStream = clientSocket.getOutputStream();
+        // The writer coalesces the queued messages in this buffer, and flushes them to the socket in one write:
+        this.outputStream = new BufferedOutputStream(clientSocket.getOutputStream(), server.getConfig().getWriteBufferSize());
+
+        // Reads the lines straight from the bytes of the socket, into one buffer reused for every line:
+        CommandDecoder decoder = new CommandDecoder(server.getConfig().getMaxLineLength());
+
+        while (decoder.readLine(inputStream)) {
+
+            //break while loop only in case the clients wants to 'logoff'or 'deregister'
+            if (processCommand(decoder)) {
+                waitForAuthentication(); // a 'deregister' is still being written
+                return;
+            }
+            waitForAuthentication();
+
+            if (binary) {
+                // The rest of the connection is frames, starting with the bytes the decoder has already read:
+                FrameDecoder frames = new FrameDecoder(decoder.getMaxLineLength(), decoder.takeBuffered(), decoder.getTerminator());
+                while (frames.readFrame(inputStream)) {
+                    if (processFrame(frames, decoder)) {
+                        waitForAuthentication();
+                        return;
+                    }
+                    waitForAuthentication();
+                }
+                return;
+            }
+        }// end while
+    }// end method
+
+    // This thread has nothing else to do until the password is checked (the check itself runs on the auth threads):
+    private void waitForAuthentication() {
+        CompletableFuture<Void> authentication = takePendingAuthentication();
+        if (authentication != null) {
+            try {
+                authentication.join();
+            } catch (CompletionException ex) {
+                LOG.log(Level.WARNING, "authentication failed", ex);
+            }
+        }
+    }// end method
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));//so we can read line by line
-        String line;
+    /*
+        Handles one command line of this client, already parsed by the decoder.
+        It is shared by the blocking read loop above and by the NIO event loops (which decode the lines from a non-blocking channel).
 
-        while ((line = reader.readLine()) != null) {
+        Returns true if the server no longer needs to read from this client (i.e. 'logoff' or 'deregister').
+     */
+    public boolean processCommand(CommandDecoder decoder) throws IOException {
+
+        boolean breakLoop = false;
+        lastRead = System.currentTimeMillis();
+        int arguments = decoder.getArgumentCount(); // the number of tokens after the command
+        CommandDecoder.Command command = decoder.getCommand();
+        long startTime = System.nanoTime();
+        metrics.commandStarted(command);
+
+        switch (command) {
+            case BLANK:
+                break;
+
+            case LOGOFF: // logoff or quit
+                processLogoff();
+                breakLoop = true; // because the server no longer needs to read from this client.
+                break;
+
+            case LOGIN:
+                // We expect the line to be: login <username> <password>  (3 tokens)
+                if (arguments == 2) {
+                    processLogin(decoder.getTarget(), decoder.getBody());
+                }
+                break;
 
-            String[] tokens = StringUtils.split(line); // split the line into tokens based on white spaces
+            case MSG:
+                // msg, receipient, body (the body is the rest of the line, with its spaces)
+                processMessage(arguments >= 2 ? decoder.getTarget() : null, arguments >= 2 ? decoder.copyBody() : null);
+                break;
 
-            if (tokens != null && tokens.length > 0) {
+            case MSG_BROADCAST:
+                // msg-broadcast, body
+                if (arguments >= 1) {
+                    processMessageBroadcast(decoder.copyRest());
+                }
+                break;
 
-                String cmd = tokens[0].toLowerCase();
-                boolean breakLoop = false;
+            case JOIN:
+                if (arguments >= 1) {
+                    processJoin(decoder.getTarget());
+                }
+                break;
 
-                switch (cmd) {
-                    case "quit":
-                    case "logoff":
-                        processLogoff();
-                        breakLoop = true; // because the server no longer needs to read from this client.
-                        break;
+            case LEAVE:
+                if (arguments >= 1) {
+                    processLeave(decoder.getTarget());
+                }
+                break;
+
+            case WHO_IS_ONLINE: // who-is-online or who-is-connected
+                //client will be able to query the server and see who is connected from the clients right now:
+                processQueryWhoIsConnected();
+                break;
+
+            case WHOAMI:
+                //Sometimes while testing, I forget the terminal I am working on belongs to which username :)
+                processWhoAmI();
+                break;
+
+            case REGISTER:
+                // We expect the line to be: register <username> <password>  (3 tokens)
+                if (arguments == 2) {
+                    processRegister(decoder.getTarget(), decoder.getBody());
+                } else {
+                    String msg = "error register" + "\n\r";
+                    reply(msg);
+                }
+                break;
 
-                    case "login":
-                        processLogin(outputStream, tokens);
-                        break;
+            case DEREGISTER:
+                boolean flag = processDeregister();
+                if (flag) {
+                    //then client deregistered successfully, and clientSocket has been closed, so break the loop: 
+                    breakLoop = true; // because the server no longer needs to read from this client.
+                }
+                break;
 
-                    case "msg":
-                        String[] tokenMsg = StringUtils.split(line, " ", 3);//split the line to only 3 tokens: msg, receipient, body
-                        processMessage(tokenMsg);
-                        break;
+            case STATS:
+                processStats();
+                break;
 
-                    case "msg-broadcast":
-                        String[] tokenMsgBr = StringUtils.split(line, " ", 2); // split the line to only 2 tokens: msg, body
-                        processMessageBroadcast(tokenMsgBr);
-                        break;
+            case HISTORY:
+                // history #topic [n]
+                processHistory(arguments >= 1 ? decoder.getTarget() : null, arguments >= 2 ? decoder.getBody() : null);
+                break;
 
-                    case "join":
-                        processJoin(tokens);
-                        break;
+            case PRESENCE:
+                processPresence(arguments >= 1 ? decoder.getTarget() : null);
+                break;
 
-                    case "leave":
-                        processLeave(tokens);
-                        break;
+            case BINARY:
+                processBinary(arguments >= 1 ? decoder.getTarget() : null);
+                break;
 
-                    case "who-is-online":
-                    case "who-is-connected":
-                        //client will be able to query the server and see who is connected from the clients right now:
-                        processQueryWhoIsConnected();
-                        break;
+            case PING:
+                reply("pong\n\r");
+                break;
 
-                    case "whoami":
-                        //Sometimes while testing, I forget the terminal I am working on belongs to which username :)
-                        processWhoAmI();
-                        break;
+            case PONG:
+                break; // the answer to our heartbeat: reading it is all we needed
 
-                    case "register":
-                        processRegister(tokens);
-                        break;
+            case TOO_LONG:
+                reply("error line too long. The maximum is " + decoder.getMaxLineLength() + " bytes\n\r");
+                break;
 
-                    case "deregister":
-                        boolean flag = processDeregister();
-                        if (flag) {
-                            //then client deregistered successfully, and clientSocket has been closed, so break the loop: 
-                            breakLoop = true; // because the server no longer needs to read from this client.
-                        }
-                        break;
+            default:
+                String msg = "unknown " + decoder.getVerb() + "\n\r";
+                reply(msg);
 
-                    default:
-                        String msg = "unknown " + cmd + "\n\r";
-                        outputStream.write(msg.getBytes());
+        }// end switch
 
-                }// end switch
+        metrics.commandHandled(command, System.nanoTime() - startTime);
+        return breakLoop;
+    }// end method
 
-                //break while loop only in case the clients wants to 'logoff'or 'deregister'
-                if (breakLoop) {
+    /*
+        Handles one frame of a binary client (see BinaryProtocol), already cut by the FrameDecoder. The TEXT frames are
+        parsed with 'decoder' and handled like the text commands.
+        Returns true like processCommand(). Throws IOException if the frame is invalid: the client must be disconnected.
+     */
+    public boolean processFrame(FrameDecoder frame, CommandDecoder decoder) throws IOException {
+        lastRead = System.currentTimeMillis();
+        int opcode = frame.getOpcode();
+        byte[] bytes = frame.getBytes();
+        int from = frame.getPayloadStart();
+        int to = frame.getPayloadEnd();
+
+        if (opcode == BinaryProtocol.COMPRESSED) {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+                inflated = new byte[frame.getMaxFrameLength()];
+            }
+            byte[] frameDictionary = (dictionary != null) ? dictionary : BinaryProtocol.DEFAULT_DICTIONARY;
+            int count = BinaryProtocol.inflate(inflater, frameDictionary, bytes, from, to, inflated);
+            if (count == 0 || inflated[0] == (byte) BinaryProtocol.COMPRESSED) {
+                throw new IOException("invalid compressed frame");
+            }
+            opcode = inflated[0] & 0xFF;
+            bytes = inflated;
+            from = 1;
+            to = count;
+        }
+
+        if (opcode == BinaryProtocol.TEXT) {
+            decoder.parse(bytes, from, to);
+            return processCommand(decoder);
+        }
+
+        long startTime = System.nanoTime();
+        switch (opcode) {
+            case BinaryProtocol.MSG: {
+                metrics.commandStarted(CommandDecoder.Command.MSG);
+                int bodyStart = BinaryProtocol.varintEnd(bytes, from, to);
+                String sendTo = (bodyStart > 0) ? server.getSymbols().name(BinaryProtocol.readVarint(bytes, from)) : null;
+                if (sendTo == null) {
+                    reply("error msg. Unknown id\n\r");
+                } else {
+                    processMessage(sendTo, Arrays.copyOfRange(bytes, bodyStart, to));
+                }
+                metrics.commandHandled(CommandDecoder.Command.MSG, System.nanoTime() - startTime);
+                break;
+            }
+
+            case BinaryProtocol.BROADCAST:
+                metrics.commandStarted(CommandDecoder.Command.MSG_BROADCAST);
+                processMessageBroadcast(Arrays.copyOfRange(bytes, from, to));
+                metrics.commandHandled(CommandDecoder.Command.MSG_BROADCAST, System.nanoTime() - startTime);
+                break;
+
+            case BinaryProtocol.INTERN: {
+                // Only the names that exist get an id, and only so many per connection: the ids are never given back.
+                String name = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+                if (login == null) {
+                    reply("error intern. You must be logged in\n\r");
+                } else if (internCount >= MAX_INTERNS) {
+                    reply("error intern. Too many names on this connection\n\r");
+                } else if (!canIntern(name)) {
+                    reply("error intern. No such user, or you haven't joined that topic\n\r");
+                } else {
+                    int id = server.getSymbols().intern(name);
+                    if (id < 0) {
+                        reply("error intern. Too many names on this server\n\r");
+                    } else {
+                        internCount++;
+                        sendName(id, name);
+                    }
+                }
+                break;
+            }
+
+            case BinaryProtocol.LOOKUP: {
+                if (login == null) {
+                    reply("error lookup. You must be logged in\n\r");
                     break;
                 }
+                int end = BinaryProtocol.varintEnd(bytes, from, to);
+                int id = (end > 0) ? BinaryProtocol.readVarint(bytes, from) : 0;
+                String name = server.getSymbols().name(id);
+                if (name == null) {
+                    reply("error lookup. Unknown id\n\r");
+                } else {
+                    sendName(id, name);
+                }
+                break;
+            }
 
-            }// end if
+            case BinaryProtocol.DICTIONARY:
+                if (from == to) {
+                    reply("error dictionary. It is empty\n\r");
+                } else {
+                    // Whatever is queued after this answer is compressed with the new dictionary:
+                    outboundLock.lock();
+                    try {
+                        reply("ok dictionary\n\r");
+                        dictionary = Arrays.copyOfRange(bytes, from, to);
+                    } finally {
+                        outboundLock.unlock();
+                    }
+                }
+                break;
 
-        }// end while
+            default:
+                reply("unknown frame " + opcode + "\n\r");
+                break;
+        }
+        return false;
+    }// end method
 
-        clientSocket.close();
+    // A user of this server (or logged in on another node of the cluster), or a topic this client has joined:
+    private boolean canIntern(String name) {
+        if (name.startsWith("#")) {
+            return topicSet.contains(name);
+        }
+        ClusterNode cluster = server.getCluster();
+        return server.isRegisteredUser(name) || (cluster != null && cluster.isOnlineRemotely(name));
     }// end method
 
     public String getLogin() {
         return this.login; // returns the username of this client who is logged in
     }
 
-    private void processLogin(OutputStream outputstream, String[] tokens) throws IOException {
-
-        // We expect the line to be: login <username> <password>  (3 tokens)
-        if (tokens.length == 3) {
-            String login = tokens[1];
-            String password = tokens[2];
+    public boolean isPresenceEnabled() {
+        return this.presenceEnabled;
+    }
 
-            // Get the password 'which is the value' of the username:
-            String query = MyServer.usersTable.get(login);
+    // Only starts the check of the password; completeLogin() runs when it is done (right away if the login is in the cache).
+    private void processLogin(String login, String password) throws IOException {
+        if (this.login != null) {
+            // One user per connection: the session of this login is bound to us, a second one would leave it behind
+            reply("error login. You are already logged in as " + this.login + ", logoff first\n\r");
+            return;
+        }
+        try {
+            CompletableFuture<Void> done = server.getAuthenticator().login(login, password)
+                    .thenAccept(valid -> completeLogin(login, valid));
+            if (!done.isDone()) {
+                pendingAuthentication = done;
+            }
+        } catch (RejectedExecutionException ex) {
+            reply("error login. The server is busy, try again later\n\r");
+        }
+    }// end method
 
-            if (query != null && query.equals(password)) {
+    private void completeLogin(String login, boolean valid) {
+        try {
+            if (valid) {
+                loginSucceeded(login);
+            } else {
+                String msg = "error login" + "\n\r";
+                reply(msg);
 
-                String msg = "ok login\n\r";
-                outputstream.write(msg.getBytes());
-                this.login = login.trim(); // store the user's username
-                System.out.println("user logged in successfully: " + login);
+                LOG.fine(() -> "Login failed for " + login);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "login of " + login + " failed", ex);
+        }
+    }// end method
 
-                List<ClientProcessor> clientsList = server.getClientsList();
+    private void loginSucceeded(String login) throws IOException {
 
-                //Send (notify) current user all other online loggins (all other logged in users)
-                for (ClientProcessor client : clientsList) {
+        String msg = "ok login\n\r";
+        reply(msg);
+        this.login = login.trim(); // store the user's username
+        LOG.fine(() -> "user logged in successfully: " + login);
 
-                    // We don't care about clients who open the terminal but not logged in yet:
-                    if (client.getLogin() != null) {
+        //Send (notify) current user all other online loggins (all other logged in users), all of them in one write:
+        if (presenceEnabled) {
+            byte[] roster = server.getPresence().roster(this);
+            if (roster.length > 0) {
+                send(roster, OutboundQueue.Lane.BULK);
+            }
+        }
 
-                        // Also nobody needs to be notified about himself being online :)
-                        if (!login.equals(client.getLogin())) {
-                            String msg2 = "online " + client.getLogin() + "\n\r";
-                            send(msg2); // this.send(msg2), this means that every online client will have his 
-                            //name written on this current user's stream (on the terminal of the current client)
-                        }
-                    }
-                }
+        // From now on the other clients can reach this one by its login:
+        server.bindSession(this.login, this);
 
-                //We want to broadcast all currently logged in clients, a message tells that this current client has logged in.
-                String onlineMsg = "online " + login + "\n\r";
-                for (ClientProcessor client : clientsList) {
+        //We want to tell all currently logged in clients that this current client has logged in (with the next batch of changes):
+        server.getPresence().online(this.login);
 
-                    // Also nobody needs to be notified about himself being online :)
-                    if (!login.equals(client.getLogin())) {
-                        client.send(onlineMsg);
-                    }
-                }
-            } else {
-                String msg = "error login" + "\n\r";
-                outputstream.write(msg.getBytes());
+        // The direct messages sent while we were offline, all in one write:
+        OfflineMailbox offlineMailbox = server.getOfflineMailbox();
+        if (offlineMailbox != null) {
+            offlineMailbox.deliver(this.login, lines -> enqueue(lines, OutboundQueue.Lane.DIRECT));
+        }
 
-                System.err.println("Login failed for " + login);
+        // If the server has been restarted since our last session: our topics, and what we hadn't received yet.
+        SessionSnapshot sessionSnapshot = server.getSessionSnapshot();
+        if (sessionSnapshot != null) {
+            SessionSnapshot.Session restored = sessionSnapshot.take(this.login);
+            if (restored != null) {
+                restoreSession(restored);
             }
-
         }
     }// end method
 
-    private void processRegister(String[] tokens) throws IOException {
-
-        // We expect the line to be: register <username> <password>  (3 tokens)
-        if (tokens.length == 3) {
-            String newUsername = tokens[1];
-            String password = tokens[2];
+    // format: "rejoined #topic1 #topic2.." then the lines still queued when the last server stopped
+    private void restoreSession(SessionSnapshot.Session restored) throws IOException {
+        if (!restored.getTopics().isEmpty()) {
+            for (String topic : restored.getTopics()) {
+                processJoin(topic);
+            }
+            reply("rejoined " + String.join(" ", restored.getTopics()) + "\n\r");
+        }
+        for (byte[] line : restored.getPendingLines()) {
+            enqueue(line, OutboundQueue.Lane.DIRECT);
+        }
+    }// end method
 
-            // Add the new user to the users hashtable
-            boolean flag = server.registerNewUser(newUsername, password);
+    private void processRegister(String newUsername, String password) throws IOException {
+        try {
+            // The password is hashed on the authenticator's threads too:
+            pendingAuthentication = server.getAuthenticator().register(newUsername, password)
+                    .thenAccept(flag -> completeRegister(newUsername, flag));
+        } catch (RejectedExecutionException ex) {
+            reply("error register. The server is busy, try again later\n\r");
+        }
+    }// end method
 
+    private void completeRegister(String newUsername, boolean flag) {
+        try {
             if (flag) {
                 String msg = "ok register\n\r";
-                outputStream.write(msg.getBytes());
+                reply(msg);
 
-                System.out.println("user registered in successfully: " + newUsername);
-                System.out.println(MyServer.usersTable);
+                LOG.fine(() -> "user registered in successfully: " + newUsername);
             } else {
                 String msg = "error register. Username is already taken\n\r";
-                outputStream.write(msg.getBytes());
+                reply(msg);
 
-                System.out.println("Register failed for: " + newUsername + ". Username is taken");
-                System.out.println(MyServer.usersTable);
+                LOG.fine(() -> "Register failed for: " + newUsername + ". Username is taken");
             }
-        } else {
-            String msg = "error register" + "\n\r";
-            this.outputStream.write(msg.getBytes());
-
-            System.err.println("Register failed");
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "register of " + newUsername + " failed", ex);
         }
     }// end method
 
     private void send(String msg) throws IOException {
+        send(encode(msg), OutboundQueue.Lane.CONTROL);
+    }// end method
+
+    /*
+        Text lines for this client only (i.e. the roster at login). The fan-outs use send(SharedLines) instead, so a binary
+        recipient doesn't frame (and compress) the same lines again.
+        The array may be shared by several queues, so nobody may modify it after it is sent.
+        'lane' is the priority of the lines (see OutboundQueue.Lane).
+     */
+    public void send(byte[] msg, OutboundQueue.Lane lane) {
 
         //Every instance of 'ClientProcessor', in other words, every client, will have a msg written on his outputStream.
         //This message informs him that a new client has logged in and is now online.
@@ -237,98 +600,450 @@ public class ClientProcessor extends Thread {
             /* 
                 if (login != null) this is because we want to check that the client is connected (logged in) before writing on his                   outputStream
              */
-            outputStream.write(msg.getBytes());
+            enqueue(msg, lane);
             //please Fares remember that this (outputstream) is attribute of the object who has invkoked the send() method
         }
 
     }// end method
 
-    private void processLeave(String[] tokens) throws IOException {
-        //format: leave #topic
-        if (tokens.length > 1) {
-            String topic = tokens[1]; // the second token
-            topicSet.remove(topic); // remove the topic from this client's topicSet.
+    // The same lines for many clients: the binary ones share their (compressed) TEXT frame.
+    public void send(SharedLines lines, OutboundQueue.Lane lane) {
+        if (login == null) {
+            return;
+        }
+        boolean queued;
+        outboundLock.lock();
+        try {
+            byte[] encoded = !binary ? lines.text() : (dictionary != null) ? lines.compressedFrame(dictionary) : lines.frame();
+            queued = outboundQueue.offer(encoded, lane);
+        } finally {
+            outboundLock.unlock();
+        }
+        afterOffer(queued);
+    }// end method
+
+    /*
+        A message of a user, for this client: its text line, or its binary frame if this client uses the binary protocol.
+        The fan-outs pass the same ChatMessage to all the recipients, so each form is encoded once.
+     */
+    public void send(ChatMessage message) {
+        if (login == null) {
+            return;
+        }
+        OutboundQueue.Lane lane = laneOf(message);
+        if (!binary) {
+            enqueue(message.text(), lane); // (it is framed there if the client has switched in the meantime)
+            return;
+        }
+
+        boolean queued;
+        outboundLock.lock();
+        try {
+            SymbolTable symbols = server.getSymbols();
+            byte[] frame = (dictionary != null) ? message.compressedFrame(symbols, dictionary) : message.frame(symbols);
+            if (frame == null) {
+                // No id for these names: then as a text frame.
+                queued = outboundQueue.offer(textFrame(message.text()), lane);
+            } else {
+                // The client must know the names of the ids before he gets them (they go in the CONTROL lane, which is
+                // always written first, so they can't be overtaken by a frame of a lane with a higher priority):
+                if (message.getKind() == ChatMessage.Kind.TOPIC) {
+                    announce(message.getTopicId(symbols), message.getTopic());
+                }
+                announce(message.getSenderId(symbols), message.getSender());
+                queued = outboundQueue.offer(frame, lane);
+            }
+        } finally {
+            outboundLock.unlock();
+        }
+        afterOffer(queued);
+    }// end method
+
+    private static OutboundQueue.Lane laneOf(ChatMessage message) {
+        switch (message.getKind()) {
+            case DIRECT:
+                return OutboundQueue.Lane.DIRECT;
+            case TOPIC:
+                return OutboundQueue.Lane.TOPIC;
+            default:
+                return OutboundQueue.Lane.BULK;
+        }
+    }// end method
+
+    // With the outboundLock. Queues the NAME frame of this id if this client doesn't know it yet.
+    private void announce(int id, String name) {
+        if (!knownSymbols.get(id) && outboundQueue.offer(frame(BinaryProtocol.nameFrame(id, name)))) {
+            knownSymbols.set(id);
+        }
+    }// end method
+
+    // The answer to INTERN and LOOKUP (sent even if it was sent before: the client asks because he has lost it).
+    private void sendName(int id, String name) {
+        boolean queued;
+        outboundLock.lock();
+        try {
+            queued = outboundQueue.offer(frame(BinaryProtocol.nameFrame(id, name)));
+            if (queued) {
+                knownSymbols.set(id);
+            }
+        } finally {
+            outboundLock.unlock();
+        }
+        afterOffer(queued);
+    }// end method
+
+    // Writes on this client's outputStream, even if the client isn't logged in yet (i.e. the answers to its own commands).
+    private void reply(String msg) throws IOException {
+        enqueue(encode(msg));
+    }// end method
+
+    private static byte[] encode(String msg) {
+        return msg.getBytes(StandardCharsets.UTF_8);
+    }// end method
+
+    // Queues text lines (as a TEXT frame for a binary client) in the CONTROL lane: the answers to our own commands.
+    private void enqueue(byte[] msg) {
+        enqueue(msg, OutboundQueue.Lane.CONTROL);
+    }
+
+    private void enqueue(byte[] msg, OutboundQueue.Lane lane) {
+        boolean queued;
+        outboundLock.lock();
+        try {
+            queued = outboundQueue.offer(binary ? textFrame(msg) : msg, lane);
+        } finally {
+            outboundLock.unlock();
+        }
+        afterOffer(queued);
+    }// end method
+
+    // With the outboundLock:
+    private byte[] textFrame(byte[] lines) {
+        return frame(BinaryProtocol.frame(BinaryProtocol.TEXT, lines));
+    }
+
+    // With the outboundLock: the frame as it must be sent to this client (compressed or not).
+    private byte[] frame(byte[] frame) {
+        return (dictionary != null) ? BinaryProtocol.compress(frame, dictionary) : frame;
+    }
+
+    private void afterOffer(boolean queued) {
+        if (!queued) {
+            if (outboundQueue.getPolicy() == OutboundQueue.OverflowPolicy.DISCONNECT) {
+                disconnectSlowClient();
+            }
+            return;
+        }
+        requestFlush();
+    }// end method
+
+    private void requestFlush() {
+        if (flushRequest != null) {
+            flushRequest.run(); // NIO: the event loop will write the queue
+        } else if (draining.compareAndSet(false, true)) {
+            ScheduledExecutorService flushScheduler = server.getFlushScheduler();
 
-            System.out.println(login + " has left " + topic);
-            System.out.print("topicSet of " + login + ": ");
-            System.out.println(topicSet);
+            if (flushScheduler != null && !closeRequested) {
+                // Give the other messages of a burst the chance to join this one in the same write:
+                flushScheduler.schedule(() -> server.getWriterExecutor().execute(this::drainOutboundQueue),
+                        server.getConfig().getFlushDelayMillis(), TimeUnit.MILLISECONDS);
+            } else {
+                server.getWriterExecutor().execute(this::drainOutboundQueue);
+            }
+        }
+    }// end method
+
+    /*
+        Runs on the server's writer executor, never on the thread of the client who sent the message.
+        The messages are coalesced in the BufferedOutputStream, and flushed every chat.flush.batch messages or when the queue is empty.
+     */
+    private void drainOutboundQueue() {
+        int batchSize = server.getConfig().getFlushBatchSize();
+        try {
+            while (true) {
+                byte[] message;
+                int batched = 0;
+                long bytes = 0;
+                while ((message = outboundQueue.poll()) != null) {
+                    outputStream.write(message);
+                    bytes += message.length;
+
+                    if (++batched == batchSize) {
+                        outputStream.flush();
+                        batched = 0;
+                    }
+                }
+                outputStream.flush();
+                metrics.bytesWritten(bytes);
+
+                if (closeRequested) {
+                    clientSocket.close();
+                }
+
+                draining.set(false);
+                // A message may have been queued after the last poll() but before draining was reset, so check again:
+                if (outboundQueue.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            // The client is gone, nobody will read the rest. Close the socket too, so his reading thread stops waiting:
+            outboundQueue.clear();
+            server.removeClientProcess(this);
+            closeSocket();
+            draining.set(false);
+        }
+    }// end method
+
+    public void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "could not close the socket of " + login, ex);
+        }
+    }// end method
+
+    // The first time expire() must be called, or -1 if all the timeouts are disabled.
+    public long firstDeadline() {
+        long next = nextDeadline();
+        return (next == Long.MAX_VALUE) ? -1 : next;
+    }// end method
+
+    /*
+        Runs on the server's timer wheel (see TimerWheel): sends the heartbeat to a silent client, and logs off the ones
+        who have been silent too long (chat.idle.timeout, or twice chat.heartbeat after the ping) or haven't logged in in
+        time (chat.login.timeout), through the same path as 'logoff'. Returns when it must run again, or -1 once this
+        connection is over.
+     */
+    @Override
+    public long expire(long now) {
+        if (evicted) {
+            // The goodbye has had a tick to be written. If the peer is dead the writer may be stuck on it: close anyway.
+            closeSocket();
+            return -1;
+        }
+        if (closeRequested || !server.isConnected(this)) {
+            return -1; // logged off, or disconnected
+        }
+
+        ServerConfig config = server.getConfig();
+        if (login == null && config.getLoginTimeoutMillis() > 0 && now - connectedAt >= config.getLoginTimeoutMillis()) {
+            return evict("login timeout", now);
+        }
+        long silence = now - lastRead;
+        if (config.getIdleTimeoutMillis() > 0 && silence >= config.getIdleTimeoutMillis()) {
+            return evict("idle timeout", now);
+        }
+        if (config.getHeartbeatMillis() > 0) {
+            boolean pinged = lastPing > lastRead;
+            if (pinged && now - lastPing >= 2 * config.getHeartbeatMillis()) {
+                // Nothing at all since the ping: the peer has gone without closing the connection (writing to it
+                // doesn't fail while the socket buffers have room, so we can't wait for that)
+                return evict("no answer to the heartbeat", now);
+            }
+            if (!pinged && silence >= config.getHeartbeatMillis()) {
+                enqueue(encode("ping\n\r"));
+                lastPing = now;
+                metrics.pingSent();
+            }
+        }
+        return nextDeadline();
+    }// end method
+
+    // The earliest of the timeouts still to come (Long.MAX_VALUE if there is none).
+    private long nextDeadline() {
+        ServerConfig config = server.getConfig();
+        long next = Long.MAX_VALUE;
+        if (login == null && config.getLoginTimeoutMillis() > 0) {
+            next = connectedAt + config.getLoginTimeoutMillis();
+        }
+        if (config.getIdleTimeoutMillis() > 0) {
+            next = Math.min(next, lastRead + config.getIdleTimeoutMillis());
         }
+        if (config.getHeartbeatMillis() > 0) {
+            // the answer to the ping is due, or the next ping:
+            next = Math.min(next, (lastPing > lastRead) ? lastPing + 2 * config.getHeartbeatMillis() : lastRead + config.getHeartbeatMillis());
+        }
+        return next;
+    }// end method
+
+    private long evict(String reason, long now) {
+        LOG.fine(() -> "Closing the connection of " + (login != null ? login : "a guest") + ": " + reason);
+        evicted = true;
+        metrics.connectionEvicted();
+        try {
+            reply("error " + reason + ". Bye\n\r");
+            processLogoff();
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "could not log off " + login, ex);
+        }
+        return now + 1000; // then expire() closes the socket, written or not
+    }// end method
+
+    // Closes the socket after the messages already queued for this client are written.
+    public void closeGracefully() {
+        closeRequested = true;
+        requestFlush();
+    }// end method
+
+    // Returns (and forgets) the login/register still being checked after the last command, or null.
+    public CompletableFuture<Void> takePendingAuthentication() {
+        CompletableFuture<Void> authentication = pendingAuthentication;
+        pendingAuthentication = null;
+        return authentication;
+    }// end method
 
+    public boolean isCloseRequested() {
+        return this.closeRequested;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return this.outboundQueue;
+    }
+
+    public Acceptor getAcceptor() {
+        return this.acceptor;
+    }
+
+    public void setAcceptor(Acceptor acceptor) {
+        this.acceptor = acceptor;
+    }
+
+    // This client doesn't read his messages fast enough, and the server is configured to disconnect such clients.
+    private void disconnectSlowClient() {
+        LOG.info(() -> "Disconnecting slow client " + login + ": " + outboundQueue.getDroppedCount() + " messages dropped");
+
+        server.removeClientProcess(this);
+        outboundQueue.clear();
+        closeSocket();
+    }// end method
+
+    private void processLeave(String topic) throws IOException {
+        //format: leave #topic
+        topicSet.remove(topic); // remove the topic from this client's topicSet.
+        server.getTopicRegistry().leave(topic, this); // and this client from the members of the topic
+
+        LOG.fine(() -> login + " has left " + topic);
     }// end method
 
     public boolean isMemberOfTopic(String topic) {
         //This topicSet stores the topics that this current client is enrolled in.
         //Check if this client is enrolled in the passed parameter topic:
-        return topicSet.contains(topic);
+        if (topicSet.contains(topic)) {
+            return true;
+        }
+        // or in a pattern matching it:
+        for (String joined : topicSet) {
+            if (SubscriptionTrie.isPattern(joined) && SubscriptionTrie.matches(joined, topic)) {
+                return true;
+            }
+        }
+        return false;
     }// end method
 
-    private void processJoin(String[] tokens) throws IOException {
+    // The topics this client has joined, so the server can remove him from all of them when he disconnects.
+    public Set<String> getTopicSet() {
+        return this.topicSet;
+    }
 
-        //format: join #topic
-        if (tokens.length > 1) {
-            String topic = tokens[1]; // the second token
-            topicSet.add(topic); // add the topic to this client's topicSet (So we can return to it and see wether this client is                   joined to a specific topic or not)
+    private void processJoin(String topic) throws IOException {
 
-            System.out.println(login + " has left " + topic);
-            System.out.print("topicSet of " + login + ": ");
-            System.out.println(topicSet);
+        //format: join #topic  or a pattern: join #ops.*  join #ops.#  (see SubscriptionTrie)
+        if (SubscriptionTrie.isPattern(topic) && !SubscriptionTrie.isValidPattern(topic)) {
+            reply("error join. A # level can only be the last one of a pattern\n\r");
+            return;
         }
+        topicSet.add(topic); // add the topic to this client's topicSet (So we can return to it and see wether this client is                   joined to a specific topic or not)
+        server.getTopicRegistry().join(topic, this); // and this client to the members of the topic, so 'msg #topic' finds him directly
+
+        LOG.fine(() -> login + " has joined " + topic);
     }// end method
 
     // format: "msg" "login" body..
     // format: "msg" "#topic" body..
-    private void processMessage(String[] tokens) throws IOException {
+    // (sendTo and body are null if the line didn't have them; body is UTF-8 and belongs to the message from now on)
+    private void processMessage(String sendTo, byte[] body) throws IOException {
 
-        if (login != null && tokens.length == 3) {
+        if (login != null && sendTo != null) {
             //The client must be logged in to be allowed to send messages to others:
 
-            //tokens[] now is array of length 3: [msg, receipient, body...]
             /*
         Example:
             jim: "msg fares Hello, Fares. How are you today?" <-- sent
 	    fares: "msg jim Hello, Fares. How are you today?" <-- received
              */
-            String sendTo = tokens[1];
-            String body = tokens[2];
 
             //Determine if the receiver is a single client, or it is a topic (chatroom):
             boolean isTopic = (sendTo.charAt(0) == '#');
 
-            List<ClientProcessor> clientsList = server.getClientsList();
-            for (ClientProcessor client : clientsList) {
+            if (isTopic && SubscriptionTrie.isPattern(sendTo)) {
+                // The patterns are for joining only: a message goes to one topic, which the patterns are matched against
+                reply("error msg. You can't send a message to a wildcard topic\n\r");
+            } else if (isTopic) {
+                //'sendTo' stores the name of the topic, and 'login' stores the username of the sender.
+                // ("msg #topic:login body" for the text clients, a TOPIC frame for the binary ones)
+                ChatMessage message = ChatMessage.topic(sendTo, login, body);
+
+                // Only the clients who joined the topic 'sendTo' are visited (send() skips the ones who aren't logged in):
+                Set<ClientProcessor> members = server.getTopicRegistry().getMembers(sendTo);
+                FanoutShards fanoutShards = server.getFanoutShards();
+                if (fanoutShards != null && fanoutShards.isPending(members.size(), pendingFanouts)) {
+                    // A huge room: the shards deliver it, we go on with our next command
+                    if (!fanoutShards.fanout(message, members, null, pendingFanouts)) {
+                        reply(FANOUT_BUSY);
+                        return; // not sent, so not kept in the history either
+                    }
+                    metrics.fanout(members.size());
+                } else {
+                    int recipients = 0;
+                    for (ClientProcessor client : members) {
+                        client.send(message);
+                        recipients++;
+                    }
+                    metrics.fanout(recipients);
+                }
 
-                if (client.getLogin() != null) {
+                // Kept for the members who join later (the topic-log thread writes it, we don't wait for the disk):
+                TopicLog topicLog = server.getTopicLog();
+                if (topicLog != null) {
+                    topicLog.append(sendTo, message.text());
+                }
 
-                    if (isTopic) {
-                        // Check if this 'client' is joined to the topic name which is stored in the variable 'sendTo'.
-                        if (client.isMemberOfTopic(sendTo)) {
-                            //the 'client' will search in his topicSet, to see if he is joined to this topic.
-                            //If so, then he will be sent a message.
-                            String outMsg = "msg " + sendTo + ":" + login + " " + body + "\n\r";
-                            client.send(outMsg);
-                            //'sendTo' stores the name of the topic, and 'login' stores the username of the sender.
-                        }
-                    } else {
-                        // Then the recipient is a single client
-                        if (client.getLogin().equalsIgnoreCase(sendTo)) {
-                            //String outMsg = "msg " + login + " " + body + "\n\r";
-                            String outMsg = login + ": " + body + "\n\r";
-
-                            // 'login' stores the name of the sender
-                            client.send(outMsg); // write into the outputStream of the recipient only.
-                        }
+                // The members connected to the other servers of the cluster:
+                if (server.getCluster() != null) {
+                    server.getCluster().routeTopic(sendTo, message.text());
+                }
+            } else {
+                // Then the recipient is a single client. Look him up directly instead of scanning all the clients:
+                ClientProcessor recipient = server.findSession(sendTo);
+                //String outMsg = "msg " + login + " " + body + "\n\r";
+                ChatMessage message = ChatMessage.direct(login, body); // "login: body"
+
+                if (recipient != null) {
+                    // 'login' stores the name of the sender
+                    // (never behind our fan-outs still in the shards: it goes in the DIRECT lane, which is written in
+                    // turn with the others, so its order with our topic messages and broadcasts isn't kept anyway)
+                    recipient.send(message); // write into the outputStream of the recipient only.
+                } else {
+                    // If he is logged in on another server of the cluster, that server delivers it:
+                    boolean routed = server.getCluster() != null && server.getCluster().routeDirect(sendTo, message.text());
+                    if (!routed && server.getOfflineMailbox() != null && server.isRegisteredUser(sendTo)) {
+                        // He is offline: keep it until his next login (or tell us it couldn't be kept)
+                        server.getOfflineMailbox().store(sendTo, message.text(), name -> server.findSession(name) != null,
+                                this::deliverOfflineMessages, reason -> enqueue(encode("error msg. " + sendTo
+                                        + " is offline and your message was not kept: " + reason + "\n\r")));
                     }
                 }
             }
         } else {
             String msg = "You have to login in order to be allowed to send messages\n\r";
-            this.outputStream.write(msg.getBytes());
+            reply(msg);
         }
 
     }// end method
 
-    private void processMessageBroadcast(String[] tokens) throws IOException {
-        //tokens[] now is array of length 2: [msg-broadcast, body...]
+    // (msgBody is UTF-8 and belongs to the message from now on)
+    private void processMessageBroadcast(byte[] msgBody) throws IOException {
         /*
         Example:
             "msg-broadcast Hello everyone, How are you all?" <-- (sent from 'Fares')
@@ -338,46 +1053,49 @@ public class ClientProcessor extends Thread {
         if (login != null) {
             //The client must be logged in to be allowed to send messages to others:
 
-            String msgBody = tokens[1]; // the second token
-            String msg = "msg " + login + " " + msgBody + "\n\r";
-
-            //Since this is a broadcast message, then send this message to ALL other clients:
-            List<ClientProcessor> clientsList = server.getClientsList();
+            ChatMessage msg = ChatMessage.broadcast(login, msgBody); // "msg login body", encoded once for all the recipients
 
-            for (ClientProcessor client : clientsList) {
-                if (client.getLogin() != null) {
+            //Since this is a broadcast message, then send this message to ALL other (logged in) clients:
+            Collection<ClientProcessor> online = server.getOnlineClients();
+            FanoutShards fanoutShards = server.getFanoutShards();
+            if (fanoutShards != null && fanoutShards.isPending(online.size(), pendingFanouts)) {
+                if (!fanoutShards.fanout(msg, online, this, pendingFanouts)) { // without us, like below
+                    reply(FANOUT_BUSY);
+                    return;
+                }
+                metrics.fanout(online.size() - 1);
+            } else {
+                int recipients = 0;
+                for (ClientProcessor client : online) {
                     //We don't want the client to receive the message that he sent to others :)
-                    if (!login.equals(client.getLogin())) {
+                    if (client != this) {
                         client.send(msg);
+                        recipients++;
                     }
                 }
+                metrics.fanout(recipients);
+            }
+
+            if (server.getCluster() != null) {
+                server.getCluster().routeBroadcast(login, msg.text());
             }
         } else {
             String msg = "You have to login in order to be allowed to send messages\n\r";
-            this.outputStream.write(msg.getBytes());
+            reply(msg);
         }
     }// end method
 
     private void processLogoff() throws IOException {
 
-        //remove this ClientProcessor instance from the list of ClientProcessors
+        //remove this ClientProcessor instance from the list of ClientProcessors (and from the online sessions)
         server.removeClientProcess(this);
 
-        List<ClientProcessor> clientsList = server.getClientsList();
-
-        //We want to broadcast all currently logged in clients, a message tells that this current client has logged off.
-        String offlineMsg = "offline " + login + "\n\r";
-        for (ClientProcessor client : clientsList) {
-
-            // Also nobody needs to be notified about himself being logged off :)
-            if (!login.equals(client.getLogin())) {
-                client.send(offlineMsg);
-            }
+        // (removeClientProcess() has told all currently logged in clients that this current client has logged off)
+        if (login != null) {
+            LOG.fine(() -> "user logged off: " + login);
         }
 
-        System.out.println("user logged off: " + login);
-
-        clientSocket.close();
+        closeGracefully();
     }// end method
 
     private boolean processDeregister() throws IOException {
@@ -386,64 +1104,78 @@ public class ClientProcessor extends Thread {
         // So if login == null, this means that the client isn't connected (logged in) yet.
         if (login != null) {
             // the the client is logged in, so I can now derigister him (delete him from the users hastable):
+            // (on the authenticator's threads, like register: the store writes it to the disk)
+            String user = login;
+            CompletableFuture<Void> done;
+            try {
+                done = server.deregisterUser(user).thenAccept(flag -> completeDeregister(user, flag));
+            } catch (RejectedExecutionException ex) {
+                reply("error deregister. The server is busy, try again later\n\r");
+                return false;
+            }
 
-            //remove this ClientProcessor instance from the list of ClientProcessors
+            //remove this ClientProcessor instance from the list of ClientProcessors (and from the online sessions)
             server.removeClientProcess(this);
+            pendingAuthentication = done;
 
-            List<ClientProcessor> clientsList = server.getClientsList();
+            return true; // the server no longer reads from this client
+        } else {
+            String msg = "error derigister. You must be logged in to be able to derigister\n\r";
+            reply(msg);
 
-            //remove this ClientProcessor instance from the list of ClientProcessors
-            if (server.deregisterUser(login)) {
-                String msg = "ok deregister: " + login + "\n\r";
-                outputStream.write(msg.getBytes());
+            return false;
+        }
+    }// end method
 
-                System.out.println("Deregistered: " + login);
-                System.out.println(server.usersTable);
+    private void completeDeregister(String user, boolean flag) {
+        try {
+            if (flag) {
+                String msg = "ok deregister: " + user + "\n\r";
+                reply(msg);
 
-                //We want to broadcast all currently logged in clients, a message tells that this current client has derigistered.
-                String deregMsg = "deregistered " + login + "\n\r";
-                for (ClientProcessor client : clientsList) {
-                    client.send(deregMsg);
+                LOG.fine(() -> "Deregistered: " + user);
+
+                if (server.getOfflineMailbox() != null) {
+                    server.getOfflineMailbox().discard(user);
                 }
 
-                clientSocket.close();
+                //We want to tell all currently logged in clients that this current client has derigistered.
+                server.getPresence().deregistered(user);
             } else {
-                String msg = "error deregister: " + login + "\n\r";
-                outputStream.write(msg.getBytes());
+                String msg = "error deregister: " + user + "\n\r";
+                reply(msg);
             }
-
-            return true; // deregistered successfully
-        } else {
-            String msg = "error derigister. You must be logged in to be able to derigister\n\r";
-            this.outputStream.write(msg.getBytes());
-
-            System.err.println("error derigister. You must be logged in to be able to derigister");
-
-            return false;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "deregister of " + user + " failed", ex);
         }
+        closeGracefully(); // after the reply has been written
     }// end method
 
     private void processQueryWhoIsConnected() throws IOException {
         //"client will be able to query the server and see who is connected from the clients right now"
-        send("List of Online Users:\n\r-------------------------\n\r");
+        if (login == null) {
+            String msg = "You have to login in order to see the list of online users\n\r";
+            reply(msg);
+            return;
+        }
 
-        List<ClientProcessor> clientsList = server.getClientsList();
+        send("List of Online Users:\n\r-------------------------\n\r");
 
         //Send (notify) current user all other online loggins (all other logged in users)
-        for (ClientProcessor client : clientsList) {
+        for (ClientProcessor client : server.getOnlineClients()) {
 
-            // We don't care about clients who open the terminal but not logged in yet:
-            if (client.getLogin() != null) {
+            // Also nobody needs to be notified about himself being online :)
+            if (client != this) {
+                String msg2 = "    - " + client.getLogin() + "\n\r";
+                send(msg2); // this.send(msg2), this means that every online client will have his 
+                //name written on this current user's stream (on the terminal of the current client)
+            }
+        }
 
-                // Also nobody needs to be notified about himself being online :)
-                if (!login.equals(client.getLogin())) {
-                    String msg2 = "    - " + client.getLogin() + "\n\r";
-                    send(msg2); // this.send(msg2), this means that every online client will have his 
-                    //name written on this current user's stream (on the terminal of the current client)
-                }
-            } else {
-                String msg = "You have to login in order to see the list of online usersn\r";
-                this.outputStream.write(msg.getBytes());
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            for (String remoteLogin : cluster.getRemoteLogins()) {
+                send("    - " + remoteLogin + "\n\r");
             }
         }
     }// end method
@@ -454,13 +1186,166 @@ public class ClientProcessor extends Thread {
         try {
             if (login != null) {
                 msg = login + "\n\r";
-                outputStream.write(msg.getBytes());
+                reply(msg);
             } else {
                 msg = "You are a Guest. Login to have access on services suchs as sending and receiving messages\n\r";
-                outputStream.write(msg.getBytes());
+                reply(msg);
             }
         } catch (IOException ex) {
-            ex.printStackTrace();
+            LOG.log(Level.WARNING, "whoami failed", ex);
+        }
+    }// end method
+
+    // The recipient of an offline message has logged in while it was being stored:
+    private void deliverOfflineMessages(String recipient) {
+        ClientProcessor client = server.findSession(recipient);
+        if (client != null) {
+            server.getOfflineMailbox().deliver(recipient, lines -> client.enqueue(lines, OutboundQueue.Lane.DIRECT));
+        }
+    }// end method
+
+    // format: history #topic [n]   (the last n messages of a topic this client has joined)
+    private void processHistory(String topic, String count) throws IOException {
+        TopicLog topicLog = server.getTopicLog();
+
+        if (login == null) {
+            reply("You have to login in order to see the history of a topic\n\r");
+            return;
+        }
+        if (topicLog == null) {
+            reply("error history. The history of the topics is disabled on this server\n\r");
+            return;
+        }
+        if (topic == null || !isMemberOfTopic(topic)) {
+            reply("error history. You must join the topic first\n\r");
+            return;
+        }
+        if (SubscriptionTrie.isPattern(topic)) {
+            reply("error history. Ask for the history of one topic, not of a wildcard topic\n\r");
+            return;
+        }
+
+        int n = DEFAULT_HISTORY;
+        if (count != null) {
+            try {
+                n = Math.min(Integer.parseInt(count.trim()), MAX_HISTORY);
+            } catch (NumberFormatException ex) {
+                n = -1;
+            }
+            if (n < 1) {
+                reply("error history. The number of messages must be between 1 and " + MAX_HISTORY + "\n\r");
+                return;
+            }
+        }
+
+        // The lines are copied from the log as they were sent (no String in between), and queued as one message:
+        boolean accepted = topicLog.history(topic, n, lines -> {
+            if (lines.length > 0) {
+                enqueue(lines, OutboundQueue.Lane.TOPIC);
+            }
+        });
+        if (!accepted) {
+            reply("error history. The server is busy, try again later\n\r");
+        }
+    }// end method
+
+    // format: presence on|off
+    private void processPresence(String state) throws IOException {
+        if ("off".equalsIgnoreCase(state)) {
+            presenceEnabled = false;
+            reply("ok presence off\n\r");
+        } else if ("on".equalsIgnoreCase(state)) {
+            // Whatever changed while it was off is lost, so start again from the current roster:
+            boolean wasEnabled = presenceEnabled;
+            presenceEnabled = true;
+            reply("ok presence on\n\r");
+            if (!wasEnabled && login != null) {
+                byte[] roster = server.getPresence().roster(this);
+                if (roster.length > 0) {
+                    send(roster, OutboundQueue.Lane.BULK);
+                }
+            }
+        } else {
+            reply("error presence. Expected: presence on|off\n\r");
+        }
+    }// end method
+
+    // format: binary [deflate]
+    private void processBinary(String option) throws IOException {
+        if (binary) {
+            reply("error binary. This connection already uses the binary protocol\n\r");
+            return;
+        }
+        boolean deflate = "deflate".equalsIgnoreCase(option);
+        if (option != null && !deflate) {
+            reply("error binary. Expected: binary [deflate]\n\r");
+            return;
+        }
+
+        // The answer is the last text line (after all the lines already queued, whatever their lanes), everything queued after it is a frame:
+        outboundLock.lock();
+        try {
+            outboundQueue.offerLast(encode(deflate ? "ok binary deflate\n\r" : "ok binary\n\r"));
+            requestFlush();
+            knownSymbols = new BitSet();
+            dictionary = deflate ? BinaryProtocol.DEFAULT_DICTIONARY : null;
+            binary = true;
+        } finally {
+            outboundLock.unlock();
+        }
+        LOG.fine(() -> login + " has switched to the binary protocol");
+    }// end method
+
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /*
+        The server is stopping (see MyServer.drain()): says goodbye, so the client knows he can reconnect in a moment.
+        The line is written with the rest of the queue, the server closes the socket when the queues are empty.
+     */
+    public void notifyDrain() {
+        outboundLock.lock();
+        try {
+            outboundQueue.offerLast(binary ? textFrame(DRAIN_NOTICE) : DRAIN_NOTICE);
+        } finally {
+            outboundLock.unlock();
+        }
+        requestFlush();
+    }// end method
+
+    /*
+        The lines still in the outbound queue, taken out of it (for the snapshot of a stopping server). A binary client's
+        queue holds frames, which can't be sent again as they are after the restart (the client logs in as a text client
+        first): they are forgotten.
+     */
+    public List<byte[]> takePendingLines() {
+        List<byte[]> lines = new ArrayList<>();
+        outboundLock.lock();
+        try {
+            if (binary) {
+                outboundQueue.clear();
+            } else {
+                byte[] line;
+                while ((line = outboundQueue.poll()) != null) {
+                    if (line != DRAIN_NOTICE) { // not for the next server
+                        lines.add(line);
+                    }
+                }
+            }
+        } finally {
+            outboundLock.unlock();
+        }
+        return lines;
+    }// end method
+
+    // The counters of the server, for the admins only (chat.admins):
+    private void processStats() throws IOException {
+        if (server.getConfig().isAdmin(login)) {
+            reply(metrics.report("\n\r"));
+        } else {
+            String msg = "error stats. Only the admins can see the server stats\n\r";
+            reply(msg);
         }
     }// end method
 
@@ -0,0 +1,193 @@
+package my_server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import my_client.ClientProcessor;
+
+/**
+ * One of the threads accepting the connections of the server (chat.acceptors), and its shard of the connected clients.
+ *
+ * Where the OS has SO_REUSEPORT (Linux), every acceptor binds its own listening socket to the same port, and the kernel
+ * spreads the new connections between them: after a deploy the reconnecting clients are accepted by all the acceptors in
+ * parallel instead of queueing behind one accept() loop. Elsewhere they all accept from the socket of the first one.
+ *
+ * The clients an acceptor has accepted are kept in its own set, so the acceptors (and the clients leaving) don't all
+ * update one set of connections. Nothing is printed here: an accepted connection is only logged at FINE.
+ *
+ * A failed accept (i.e. no file descriptor left, or a connection reset before we took it) only costs that connection:
+ * the acceptor logs it, waits a moment (ACCEPT_RETRY_DELAY_MILLIS, so it doesn't spin while the descriptors are all
+ * taken) and goes on. It only stops when its listening socket is closed, or the server is being drained.
+ *
+ * @author Fares Abu Ali
+ */
+public class Acceptor extends Thread {
+
+    private static final Logger LOG = Logger.getLogger(Acceptor.class.getName());
+
+    private static final long ACCEPT_RETRY_DELAY_MILLIS = 100;
+
+    private final MyServer server;
+    private final ServerConfig config;
+
+    // The connected clients accepted by this acceptor (logged in or not):
+    private final Set<ClientProcessor> clients = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder accepted = new LongAdder();
+
+    // The blocking modes accept from 'serverSocket', the NIO mode from 'serverChannel' (the other one is null):
+    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+
+    // NIO mode: the event loops the accepted channels are handed to, in turn.
+    private NioEventLoop[] loops;
+    private int nextLoop;
+
+    Acceptor(MyServer server, int index) {
+        super("acceptor-" + index);
+        this.server = server;
+        this.config = server.getConfig();
+    }// end constructor
+
+    // Whether several listening sockets can be bound to the same port here:
+    static boolean isReusePortSupported(boolean nio) {
+        try {
+            if (nio) {
+                try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+                    return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+                }
+            }
+            try (ServerSocket socket = new ServerSocket()) {
+                return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }// end method
+
+    /*
+        Binds a listening socket of this acceptor to 'port' (0: a free port chosen by the system) and returns its port.
+        With 'reusePort' the other acceptors can bind theirs to the same port afterwards.
+     */
+    int bind(int port, boolean nio, boolean reusePort) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(port);
+        if (nio) {
+            serverChannel = ServerSocketChannel.open();
+            if (reusePort) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverChannel.bind(address, config.getAcceptBacklog());
+            return serverChannel.socket().getLocalPort();
+        }
+
+        serverSocket = new ServerSocket();
+        if (reusePort) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverSocket.bind(address, config.getAcceptBacklog());
+        return serverSocket.getLocalPort();
+    }// end method
+
+    // Without SO_REUSEPORT: accepts from the listening socket of the first acceptor.
+    void share(Acceptor first) {
+        this.serverSocket = first.serverSocket;
+        this.serverChannel = first.serverChannel;
+    }// end method
+
+    // NIO mode, before start(). The acceptors start on different loops, so the first connections aren't all on loop 0.
+    void setEventLoops(NioEventLoop[] loops, int first) {
+        this.loops = loops;
+        this.nextLoop = first % loops.length;
+    }// end method
+
+    @Override
+    public void run() {
+        try {
+            while (!server.isDraining() && isOpen()) {
+                try {
+                    if (serverChannel != null) {
+                        acceptChannel();
+                    } else {
+                        acceptSocket();
+                    }
+                } catch (IOException ex) {
+                    if (server.isDraining() || !isOpen()) {
+                        break; // closed by close()
+                    }
+                    LOG.log(Level.WARNING, getName() + " could not accept a connection", ex);
+                    Thread.sleep(ACCEPT_RETRY_DELAY_MILLIS);
+                }
+            }// end while
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, getName() + " stopped accepting connections", e);
+        }
+    }// end method
+
+    private boolean isOpen() {
+        return (serverChannel != null) ? serverChannel.isOpen() : !serverSocket.isClosed();
+    }// end method
+
+    private void acceptSocket() throws IOException {
+        Socket clientSocket = serverSocket.accept();
+        try {
+            clientSocket.setTcpNoDelay(config.isTcpNoDelay()); // Nagle is useless when the writers coalesce the messages themselves
+        } catch (IOException ex) {
+            clientSocket.close(); // (reset already) this connection only
+            throw ex;
+        }
+        accepted.increment();
+        LOG.fine(() -> getName() + " accepted connection from " + clientSocket);
+
+        //Multi-Threading: Now the server can handle multiple clients concurrently
+        ClientProcessor client = new ClientProcessor(server, clientSocket);
+        server.addClientProcess(client, this); // add this client to our shard
+        server.startClient(client, "client-" + clientSocket.getPort());
+    }// end method
+
+    private void acceptChannel() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, config.isTcpNoDelay());
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        accepted.increment();
+
+        loops[nextLoop].register(channel, this);
+        nextLoop = (nextLoop + 1) % loops.length;
+    }// end method
+
+    // Stops accepting (the server is being drained): closes the listening socket, accept() fails and the thread ends.
+    void close() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            } else if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, getName() + " could not close its socket", ex);
+        }
+    }// end method
+
+    public Set<ClientProcessor> getClients() {
+        return this.clients;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+}// end class
@@ -0,0 +1,93 @@
+package my_server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * A java.util.logging Handler that prints the log records on a background thread.
+ *
+ * The server threads only put the record in a bounded queue, so logging never makes them wait for the console.
+ * If the console can't keep up and the queue is full, the records are dropped (and counted) instead.
+ *
+ * The level is given by the system property chat.log.level (default INFO). The per-event messages of the server
+ * (logins, joins, registrations..) are logged at FINE with a Supplier, so by default they are not even built.
+ *
+ * @author Fares Abu Ali
+ */
+public class AsyncLogHandler extends Handler {
+
+    private final BlockingQueue<LogRecord> records;
+    private final Handler console = new ConsoleHandler();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public AsyncLogHandler(int capacity) {
+        this.records = new ArrayBlockingQueue<>(capacity);
+        console.setLevel(Level.ALL);
+        console.setFormatter(new SimpleFormatter());
+
+        Thread printer = new Thread(this::printRecords, "log-printer");
+        printer.setDaemon(true);
+        printer.start();
+    }// end constructor
+
+    // Replaces the console handler of the root logger by an AsyncLogHandler, with the level of chat.log.level.
+    public static void install() {
+        Level level = Level.parse(System.getProperty("chat.log.level", "INFO").toUpperCase());
+
+        Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            root.removeHandler(handler);
+        }
+
+        AsyncLogHandler handler = new AsyncLogHandler(10_000);
+        handler.setLevel(level);
+        root.addHandler(handler);
+        root.setLevel(level);
+    }// end method
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) {
+            return;
+        }
+        record.getSourceMethodName(); // the caller is found from the stack, so it must be done on the logging thread
+        if (!records.offer(record)) {
+            droppedCount.incrementAndGet();
+        }
+    }// end method
+
+    private void printRecords() {
+        try {
+            while (true) {
+                console.publish(records.take());
+                if (records.isEmpty()) {
+                    console.flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }// end method
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void flush() {
+        console.flush();
+    }
+
+    @Override
+    public void close() {
+        console.close();
+    }
+
+}// end class
@@ -0,0 +1,157 @@
+package my_server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Checks the logins and registers the users, in front of the CredentialStore.
+ *
+ * Hashing a password takes a long time on purpose (see PasswordHash), so it never runs on the threads that read the
+ * clients' commands: it runs on a fixed pool of chat.auth.threads threads, with a queue of chat.auth.queue logins at
+ * most. A login storm only makes the logins wait, the messages of the clients already logged in keep flowing. When
+ * the queue is full the login is refused right away (RejectedExecutionException) instead of piling up.
+ *
+ * The users who logged in successfully lately are remembered in a small LRU cache (chat.auth.cache entries), with a
+ * fast keyed digest of their password (not the password itself), so logging in again doesn't cost a slow hash.
+ * Deregistering a user forgets his digest, and bumps the generation of the cache: a check of his password that was
+ * already running then doesn't put the old digest back.
+ *
+ * @author Fares Abu Ali
+ */
+public class Authenticator {
+
+    private final CredentialStore store;
+    private final ThreadPoolExecutor executor;
+
+    // Only used with the lock (a LinkedHashMap in access order is modified by get() too).
+    private final LinkedHashMap<String, byte[]> cache;
+    private final ReentrantLock cacheLock = new ReentrantLock();
+    private long cacheGeneration; // with the lock, +1 on every forget()
+
+    // A random key of this run of the server, mixed in the cached digests:
+    private final byte[] cacheKey = new byte[32];
+
+    public Authenticator(CredentialStore store, ServerConfig config) {
+        this.store = store;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(config.getAuthThreads(), config.getAuthThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getAuthQueueCapacity()), task -> {
+                    Thread thread = new Thread(task, "auth-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        int cacheSize = config.getAuthCacheSize();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        new SecureRandom().nextBytes(cacheKey);
+    }// end constructor
+
+    /*
+        Completes with true if the password is right. It is already completed if the user is in the cache, otherwise it
+        completes on one of the auth threads.
+        Throws RejectedExecutionException if too many logins are already waiting.
+     */
+    public CompletableFuture<Boolean> login(String username, String password) {
+        String user = username.toLowerCase(Locale.ROOT);
+        byte[] digest = digest(user, password);
+
+        long generation;
+        cacheLock.lock();
+        try {
+            byte[] cached = cache.get(user);
+            if (cached != null && MessageDigest.isEqual(cached, digest)) {
+                return CompletableFuture.completedFuture(true);
+            }
+            generation = cacheGeneration;
+        } finally {
+            cacheLock.unlock();
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            boolean valid = store.verify(username, password);
+            if (valid) {
+                remember(user, digest, generation);
+            }
+            return valid;
+        }, executor);
+    }// end method
+
+    // Completes with false if the username is taken. Throws RejectedExecutionException like login().
+    public CompletableFuture<Boolean> register(String username, String password) {
+        return CompletableFuture.supplyAsync(() -> store.register(username, password), executor);
+    }// end method
+
+    // Completes with false if the user didn't exist. The store writes to the disk, so it runs on the auth threads too.
+    public CompletableFuture<Boolean> deregister(String username) {
+        return CompletableFuture.supplyAsync(() -> {
+            boolean removed = store.deregister(username);
+            forget(username.toLowerCase(Locale.ROOT)); // after the store: a login checked before that isn't cached
+            return removed;
+        }, executor);
+    }// end method
+
+    public boolean isRegistered(String username) {
+        return store.contains(username);
+    }
+
+    public CredentialStore getStore() {
+        return this.store;
+    }
+
+    // How many logins/registrations are waiting for an auth thread:
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    // 'generation' is the one of the cache when the check of the password started: if a user was forgotten since, skip it.
+    private void remember(String user, byte[] digest, long generation) {
+        cacheLock.lock();
+        try {
+            if (generation == cacheGeneration) {
+                cache.put(user, digest);
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+    }// end method
+
+    private void forget(String user) {
+        cacheLock.lock();
+        try {
+            cache.remove(user);
+            cacheGeneration++;
+        } finally {
+            cacheLock.unlock();
+        }
+    }// end method
+
+    private byte[] digest(String user, String password) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(cacheKey);
+            sha256.update(user.getBytes(StandardCharsets.UTF_8));
+            sha256.update((byte) 0);
+            return sha256.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }// end method
+
+}// end class
@@ -0,0 +1,86 @@
+package my_server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One daemon thread that runs the disk work of the server (the topic history, the offline mailboxes) in the order it
+ * was submitted, so the data it owns needs no locking.
+ *
+ * The client threads never wait for it: the tasks go in a bounded queue, and a task that doesn't fit is refused (and
+ * counted). Every 'period' milliseconds it also runs the periodic task (i.e. deleting what is too old).
+ *
+ * @author Fares Abu Ali
+ */
+public class BackgroundWorker {
+
+    private static final Logger LOG = Logger.getLogger(BackgroundWorker.class.getName());
+
+    private final BlockingQueue<Runnable> tasks;
+    private final long period;
+    private final Runnable periodicTask;
+    private final AtomicLong refusedCount = new AtomicLong();
+
+    public BackgroundWorker(String name, int capacity, long period, Runnable periodicTask) {
+        this.tasks = new ArrayBlockingQueue<>(capacity);
+        this.period = period;
+        this.periodicTask = periodicTask;
+
+        Thread thread = new Thread(this::runTasks, name);
+        thread.setDaemon(true);
+        thread.start();
+    }// end constructor
+
+    // Returns false if the queue is full and the task was refused.
+    public boolean submit(Runnable task) {
+        if (!tasks.offer(task)) {
+            refusedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }// end method
+
+    /*
+        Waits until the tasks submitted so far have run (i.e. before the server stops). Returns false if they haven't
+        within 'timeoutMillis'.
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        CountDownLatch done = new CountDownLatch(1);
+        if (!tasks.offer(done::countDown, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        return done.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }// end method
+
+    private void runTasks() {
+        long nextPeriod = System.currentTimeMillis() + period;
+        while (true) {
+            try {
+                Runnable task = tasks.poll(period, TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    task.run();
+                }
+
+                if (System.currentTimeMillis() >= nextPeriod) {
+                    periodicTask.run();
+                    nextPeriod = System.currentTimeMillis() + period;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, Thread.currentThread().getName() + " task failed", ex);
+            }
+        }// end while
+    }// end method
+
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+}// end class
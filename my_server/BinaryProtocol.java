@@ -0,0 +1,209 @@
+package my_server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary mode of the protocol, for the bots and gateways that send a lot of messages.
+ *
+ * A client switches to it with the text command 'binary' (or 'binary deflate'); after the answer "ok binary" both sides
+ * only send frames:
+ *
+ * <pre>
+ *     [varint length][opcode][payload]      length = 1 + the length of the payload, at most chat.line.max
+ * </pre>
+ *
+ * The varints are unsigned LEB128 (7 bits per byte, the high bit set on all the bytes but the last). The users and the
+ * topics are written as varint ids of the SymbolTable instead of their names (see protocols.txt for the opcodes).
+ *
+ * With 'binary deflate' the frames longer than COMPRESS_MIN bytes are sent deflated, each one on its own (so a dropped
+ * message can't break the next ones), with a preset dictionary: DEFAULT_DICTIONARY, or the one the client sends with a
+ * DICTIONARY frame. The client may compress its frames the same way.
+ *
+ * @author Fares Abu Ali
+ */
+public final class BinaryProtocol {
+
+    // Both directions:
+    public static final int TEXT = 0x01; // text lines, like in the text protocol
+    public static final int COMPRESSED = 0x7F; // [opcode][payload] of another frame, deflated with the dictionary
+
+    // From the client:
+    public static final int MSG = 0x02; // [varint user or #topic id][body]
+    public static final int BROADCAST = 0x03; // [body]
+    public static final int INTERN = 0x04; // [name]: the server answers with NAME
+    public static final int LOOKUP = 0x05; // [varint id]: the server answers with NAME
+    public static final int DICTIONARY = 0x06; // [bytes]: the compression dictionary of this connection
+
+    // From the server:
+    public static final int NAME = 0x81; // [varint id][name]
+    public static final int DIRECT = 0x82; // [varint sender id][body]
+    public static final int TOPIC = 0x83; // [varint topic id][varint sender id][body]
+    public static final int BROADCAST_FROM = 0x84; // [varint sender id][body]
+
+    // Smaller frames don't get smaller when deflated:
+    public static final int COMPRESS_MIN = 64;
+
+    // What most of the frames are made of (deflate finds the repetitions of the end of the dictionary first):
+    public static final byte[] DEFAULT_DICTIONARY = ("error You have to login in order to be allowed to send messages "
+            + "the and you are is to of it that this for with what how hello thanks ok "
+            + "deregistered \n\roffline \n\ronline \n\rmsg #").getBytes(StandardCharsets.UTF_8);
+
+    // Deflaters hold a lot of native memory, so they are shared by all the threads instead of one per (virtual) thread:
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private BinaryProtocol() {
+    }
+
+    //=================================================
+    // Building the frames:
+
+    public static byte[] frame(int opcode, byte[] payload) {
+        return frame(opcode, payload, 0, payload.length);
+    }
+
+    public static byte[] frame(int opcode, byte[] payload, int from, int to) {
+        int length = 1 + (to - from);
+        byte[] frame = new byte[varintSize(length) + length];
+        int i = writeVarint(frame, 0, length);
+        frame[i++] = (byte) opcode;
+        System.arraycopy(payload, from, frame, i, to - from);
+        return frame;
+    }// end method
+
+    // A frame whose payload starts with one or two ids (the second one is ignored if it is negative):
+    public static byte[] frame(int opcode, int firstId, int secondId, byte[] body) {
+        int length = 1 + varintSize(firstId) + (secondId >= 0 ? varintSize(secondId) : 0) + body.length;
+        byte[] frame = new byte[varintSize(length) + length];
+        int i = writeVarint(frame, 0, length);
+        frame[i++] = (byte) opcode;
+        i = writeVarint(frame, i, firstId);
+        if (secondId >= 0) {
+            i = writeVarint(frame, i, secondId);
+        }
+        System.arraycopy(body, 0, frame, i, body.length);
+        return frame;
+    }// end method
+
+    public static byte[] nameFrame(int id, String name) {
+        return frame(NAME, id, -1, name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+        The same frame deflated with the dictionary, or the frame itself if it is short or doesn't get smaller.
+        The arrays given are not modified.
+     */
+    public static byte[] compress(byte[] frame, byte[] dictionary) {
+        int start = varintSize(readVarint(frame, 0)); // [opcode][payload] are compressed, not the length
+        if (frame.length - start < COMPRESS_MIN) {
+            return frame;
+        }
+
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true); // raw deflate: no header and checksum on every frame
+        }
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(frame, start, frame.length - start);
+            deflater.finish();
+
+            byte[] deflated = new byte[frame.length]; // if it doesn't fit, it isn't worth it
+            int count = 0;
+            while (!deflater.finished() && count < deflated.length) {
+                count += deflater.deflate(deflated, count, deflated.length - count);
+            }
+            if (!deflater.finished() || 1 + count >= frame.length - start) {
+                return frame;
+            }
+            return frame(COMPRESSED, deflated, 0, count);
+        } finally {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        }
+    }// end method
+
+    /*
+        The [opcode][payload] of a COMPRESSED frame, inflated into 'output' (the inflater belongs to the connection).
+        Returns the number of bytes. Throws IOException if it isn't valid, or longer than the output.
+     */
+    public static int inflate(Inflater inflater, byte[] dictionary, byte[] bytes, int from, int to, byte[] output) throws IOException {
+        inflater.reset();
+        inflater.setDictionary(dictionary); // raw deflate (no header): the dictionary is set before, not asked for
+        inflater.setInput(bytes, from, to - from);
+        try {
+            int count = 0;
+            while (!inflater.finished()) {
+                if (count == output.length) {
+                    throw new IOException("compressed frame too long");
+                }
+                int inflated = inflater.inflate(output, count, output.length - count);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("truncated compressed frame");
+                }
+                count += inflated;
+            }
+            return count;
+        } catch (DataFormatException ex) {
+            throw new IOException("invalid compressed frame", ex);
+        }
+    }// end method
+
+    //=================================================
+    // Varints:
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }// end method
+
+    // Returns the index after the varint.
+    public static int writeVarint(byte[] bytes, int i, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[i++] = (byte) value;
+        return i;
+    }// end method
+
+    // The varint at 'from' (complete, see varintEnd()).
+    public static int readVarint(byte[] bytes, int from) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[from++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }// end method
+
+    /*
+        The index after the varint at 'from', or -1 if its last byte isn't in [from, to) yet.
+        Throws IOException if it is longer than the 5 bytes of an int.
+     */
+    public static int varintEnd(byte[] bytes, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (i - from >= 5) {
+                throw new IOException("invalid varint");
+            }
+            if (bytes[i] >= 0) {
+                return i + 1;
+            }
+        }
+        if (to - from >= 5) {
+            throw new IOException("invalid varint");
+        }
+        return -1;
+    }// end method
+
+}// end class
@@ -0,0 +1,160 @@
+package my_server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message sent by a user (direct, to a topic, or broadcast), given to all its recipients.
+ *
+ * Its text line and its binary frame are both built at most once, when the first recipient who needs it asks for it:
+ * a message between two binary clients never becomes a String, and a fan-out encodes it once whatever the number of
+ * recipients. The arrays returned are shared, nobody may modify them.
+ *
+ * @author Fares Abu Ali
+ */
+public final class ChatMessage {
+
+    public enum Kind {
+        DIRECT, TOPIC, BROADCAST
+    }
+
+    private final Kind kind;
+    private final String sender;
+    private final String topic; // null if it isn't sent to a topic
+    private final byte[] body;
+
+    // Built on demand. Two threads may build them at the same time, they build the same bytes.
+    private volatile byte[] text;
+    private volatile byte[] frame;
+    private volatile int senderId;
+    private volatile int topicId;
+    private volatile Compressed compressed;
+
+    // The frame deflated with one dictionary (usually the default one, shared by most of the binary clients):
+    static final class Compressed {
+
+        final byte[] dictionary;
+        final byte[] frame;
+
+        Compressed(byte[] dictionary, byte[] frame) {
+            this.dictionary = dictionary;
+            this.frame = frame;
+        }
+    }// end class
+
+    private ChatMessage(Kind kind, String sender, String topic, byte[] body) {
+        this.kind = kind;
+        this.sender = sender;
+        this.topic = topic;
+        this.body = body;
+    }// end constructor
+
+    // 'body' is the UTF-8 text of the message, without the end of line. It must not be modified afterwards.
+    public static ChatMessage direct(String sender, byte[] body) {
+        return new ChatMessage(Kind.DIRECT, sender, null, body);
+    }
+
+    public static ChatMessage topic(String topic, String sender, byte[] body) {
+        return new ChatMessage(Kind.TOPIC, sender, topic, body);
+    }
+
+    public static ChatMessage broadcast(String sender, byte[] body) {
+        return new ChatMessage(Kind.BROADCAST, sender, null, body);
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    public String getSender() {
+        return this.sender;
+    }
+
+    public String getTopic() {
+        return this.topic;
+    }
+
+    // The line of the text protocol (see protocols.txt).
+    public byte[] text() {
+        byte[] line = text;
+        if (line == null) {
+            String prefix;
+            switch (kind) {
+                case DIRECT:
+                    prefix = sender + ": ";
+                    break;
+                case TOPIC:
+                    prefix = "msg " + topic + ":" + sender + " ";
+                    break;
+                default:
+                    prefix = "msg " + sender + " ";
+                    break;
+            }
+            byte[] start = prefix.getBytes(StandardCharsets.UTF_8);
+            line = new byte[start.length + body.length + 2];
+            System.arraycopy(start, 0, line, 0, start.length);
+            System.arraycopy(body, 0, line, start.length, body.length);
+            line[line.length - 2] = '\n';
+            line[line.length - 1] = '\r';
+            text = line;
+        }
+        return line;
+    }// end method
+
+    /*
+        The frame of the binary protocol (see BinaryProtocol), or null if the names couldn't get an id (the symbol table is
+        full): then it is sent as a text frame.
+     */
+    public byte[] frame(SymbolTable symbols) {
+        byte[] binary = frame;
+        if (binary == null) {
+            int senderId = getSenderId(symbols);
+            int topicId = (kind == Kind.TOPIC) ? getTopicId(symbols) : 0;
+            if (senderId < 0 || topicId < 0) {
+                return null;
+            }
+            switch (kind) {
+                case DIRECT:
+                    binary = BinaryProtocol.frame(BinaryProtocol.DIRECT, senderId, -1, body);
+                    break;
+                case TOPIC:
+                    binary = BinaryProtocol.frame(BinaryProtocol.TOPIC, topicId, senderId, body);
+                    break;
+                default:
+                    binary = BinaryProtocol.frame(BinaryProtocol.BROADCAST_FROM, senderId, -1, body);
+                    break;
+            }
+            frame = binary;
+        }
+        return binary;
+    }// end method
+
+    // The frame deflated with this dictionary (see BinaryProtocol.compress()), or null like frame().
+    public byte[] compressedFrame(SymbolTable symbols, byte[] dictionary) {
+        Compressed last = compressed;
+        if (last != null && last.dictionary == dictionary) {
+            return last.frame;
+        }
+        byte[] binary = frame(symbols);
+        if (binary == null) {
+            return null;
+        }
+        byte[] deflated = BinaryProtocol.compress(binary, dictionary);
+        compressed = new Compressed(dictionary, deflated);
+        return deflated;
+    }// end method
+
+    public int getSenderId(SymbolTable symbols) {
+        if (senderId == 0) {
+            senderId = symbols.intern(sender);
+        }
+        return senderId;
+    }// end method
+
+    public int getTopicId(SymbolTable symbols) {
+        if (topicId == 0) {
+            topicId = symbols.intern(topic);
+        }
+        return topicId;
+    }// end method
+
+}// end class
@@ -0,0 +1,543 @@
+package my_server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import my_client.ClientProcessor;
+
+/**
+ * One server of a cluster: the users connected to any server of the cluster can send each other direct messages, topic
+ * messages and broadcasts.
+ *
+ * Every node knows all the others (chat.cluster.peers), and opens one link to each of them, only to send. The links of
+ * the others come in on chat.cluster.port, only to receive. A message is handed to the node that has the recipient
+ * (or to all the nodes for a topic or a broadcast), which delivers it to its own clients only and never forwards it.
+ *
+ * The presence directory says which node each remote user is logged in on. It is kept up to date incrementally: a node
+ * sends ONLINE/OFFLINE when one of its users logs in or off, and its whole roster (SNAPSHOT) only when its link to a
+ * peer (re)connects. When a peer's link drops, its users are considered offline.
+ *
+ * The links speak binary frames:
+ *
+ * <pre>
+ *     [int length of the rest][byte type][fields..]     a String is [short length][UTF-8 bytes], bytes are [int length][bytes]
+ *
+ *     HELLO      node id, proof           the first frame of a link (see below)
+ *     SNAPSHOT   count, login..           all the users logged in on the sender
+ *     ONLINE     login
+ *     OFFLINE    login
+ *     DIRECT     recipient, line          deliver 'line' to the recipient (a user of the receiving node)
+ *     TOPIC      topic, line              deliver 'line' to the local members of the topic
+ *     BROADCAST  sender, line             deliver 'line' to all the local users
+ * </pre>
+ *
+ * The 'line' is the exact bytes the clients receive, so the receiving node queues it to its clients without decoding it.
+ * Each link has its own writer thread, which writes all the frames queued for that node in one batch and one flush.
+ * A frame is at most twice chat.line.max (the line, and the names around it), a SNAPSHOT excepted: a longer one closes
+ * the link before anything is allocated for it.
+ *
+ * The listener only accepts nodes that know chat.cluster.secret: it first sends a random challenge (CHALLENGE_SIZE raw
+ * bytes), and the proof in the HELLO must be the HMAC-SHA256 of the challenge and the node id, keyed with the secret.
+ * It answers ACCEPTED (one byte) and the link starts, or closes it. The secret itself never goes on the wire, and a
+ * recorded HELLO is worth nothing on the next link.
+ *
+ * To try it on one machine, start several servers with different chat.cluster.port (each one keeps its files in
+ * chat-data/<node id>), i.e.
+ *
+ * <pre>
+ *     java -Dchat.cluster.node=a -Dchat.cluster.port=7101 -Dchat.cluster.peers=b@localhost:7102 -Dchat.cluster.secret=s ...
+ *     java -Dchat.cluster.node=b -Dchat.cluster.port=7102 -Dchat.cluster.peers=a@localhost:7101 -Dchat.cluster.secret=s ...
+ * </pre>
+ *
+ * or let my_bench.ClusterHarness start them.
+ *
+ * @author Fares Abu Ali
+ */
+public class ClusterNode {
+
+    private static final Logger LOG = Logger.getLogger(ClusterNode.class.getName());
+
+    private static final byte HELLO = 1;
+    private static final byte SNAPSHOT = 2;
+    private static final byte ONLINE = 3;
+    private static final byte OFFLINE = 4;
+    private static final byte DIRECT = 5;
+    private static final byte TOPIC = 6;
+    private static final byte BROADCAST = 7;
+
+    private static final int LINK_QUEUE_CAPACITY = 100_000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private static final int CHALLENGE_SIZE = 32;
+    private static final int ACCEPTED = 1;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    private final MyServer server;
+    private final String nodeId;
+    private final int port;
+    private final String bindAddress;
+    private final byte[] secret;
+    private final int maxFrameLength;
+    private final SecureRandom random = new SecureRandom();
+    private final List<PeerLink> peers = new ArrayList<>();
+
+    // The users logged in on the other nodes, by their login in lower case (like the sessions of MyServer):
+    private final ConcurrentHashMap<String, RemoteUser> directory = new ConcurrentHashMap<>();
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+
+    public ClusterNode(MyServer server, ServerConfig config) {
+        this.server = server;
+        this.nodeId = config.getClusterNode();
+        this.port = config.getClusterPort();
+        this.bindAddress = config.getClusterBindAddress();
+        this.secret = config.getClusterSecret().getBytes(StandardCharsets.UTF_8);
+        this.maxFrameLength = 2 * config.getMaxLineLength() + 64;
+
+        // id@host:port,id@host:port..
+        for (String peer : config.getClusterPeers().split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at < 1 || colon < at) {
+                throw new IllegalArgumentException("chat.cluster.peers: expected id@host:port, not " + peer);
+            }
+            peers.add(new PeerLink(peer.substring(0, at), peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+    }// end constructor
+
+    public void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(bindAddress, port));
+        startDaemon(() -> acceptLinks(listener), "cluster-accept");
+
+        for (PeerLink peer : peers) {
+            startDaemon(peer::run, "cluster-link-" + peer.id);
+        }
+        LOG.info(() -> "cluster node " + nodeId + " listening on " + listener.getLocalSocketAddress() + ", peers: " + peers.size());
+    }// end method
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }// end method
+
+    //=================================================
+    // Called by the local clients:
+
+    public void publishOnline(String login) {
+        sendToAll(frame(ONLINE, login, null));
+    }
+
+    public void publishOffline(String login) {
+        sendToAll(frame(OFFLINE, login, null));
+    }
+
+    // Returns false if the recipient isn't logged in on another node either.
+    public boolean routeDirect(String recipient, byte[] line) {
+        RemoteUser user = directory.get(key(recipient));
+        if (user == null) {
+            return false;
+        }
+        user.node.send(frame(DIRECT, recipient, line));
+        return true;
+    }// end method
+
+    public void routeTopic(String topic, byte[] line) {
+        sendToAll(frame(TOPIC, topic, line));
+    }
+
+    public void routeBroadcast(String sender, byte[] line) {
+        sendToAll(frame(BROADCAST, sender, line));
+    }
+
+    // The logins of the users connected to the other nodes:
+    public List<String> getRemoteLogins() {
+        List<String> logins = new ArrayList<>();
+        for (RemoteUser user : directory.values()) {
+            logins.add(user.login);
+        }
+        return logins;
+    }// end method
+
+    public boolean isOnlineRemotely(String login) {
+        return directory.containsKey(key(login));
+    }
+    //=================================================
+
+    private void sendToAll(byte[] frame) {
+        for (PeerLink peer : peers) {
+            peer.send(frame);
+        }
+    }// end method
+
+    private static String key(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+
+    // [int length][byte type][string][bytes] (the string and the bytes are optional)
+    private static byte[] frame(byte type, String text, byte[] line) {
+        byte[] textBytes = (text != null) ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int length = 1 + 2 + textBytes.length + ((line != null) ? 4 + line.length : 0);
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(type).putShort((short) textBytes.length).put(textBytes);
+        if (line != null) {
+            frame.putInt(line.length).put(line);
+        }
+        return frame.array();
+    }// end method
+
+    // The proof that the node 'id' knows the secret, for this challenge:
+    private byte[] proof(byte[] challenge, String id) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(challenge);
+            return mac.doFinal(id.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("HmacSHA256 is not available", ex);
+        }
+    }// end method
+
+    private byte[] snapshotFrame() {
+        List<byte[]> logins = new ArrayList<>();
+        int length = 1 + 4;
+        for (ClientProcessor client : server.getOnlineClients()) {
+            byte[] login = client.getLogin().getBytes(StandardCharsets.UTF_8);
+            logins.add(login);
+            length += 2 + login.length;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(SNAPSHOT).putInt(logins.size());
+        for (byte[] login : logins) {
+            frame.putShort((short) login.length).put(login);
+        }
+        return frame.array();
+    }// end method
+
+    //=================================================
+    // The links of the other nodes:
+
+    private void acceptLinks(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                startDaemon(() -> receive(socket), "cluster-in-" + socket.getPort());
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "cluster listener failed", ex);
+                return;
+            }
+        }
+    }// end method
+
+    private void receive(Socket socket) {
+        PeerLink from = null;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            from = handshake(socket, in);
+            if (from == null) {
+                return;
+            }
+
+            while (true) {
+                int length = in.readInt();
+                byte type = in.readByte();
+                if (length < 1 || (length > maxFrameLength && type != SNAPSHOT)) {
+                    throw new IOException("a cluster frame of " + length + " bytes");
+                }
+                framesReceived.incrementAndGet();
+
+                switch (type) {
+                    case SNAPSHOT:
+                        snapshot(in, from);
+                        break;
+                    case ONLINE:
+                        userOnline(readString(in), from);
+                        break;
+                    case OFFLINE:
+                        userOffline(readString(in), from);
+                        break;
+                    case DIRECT:
+                        deliverDirect(readString(in), readBytes(in));
+                        break;
+                    case TOPIC:
+                        deliverTopic(readString(in), readBytes(in));
+                        break;
+                    case BROADCAST:
+                        readString(in); // the sender, he is on the other node
+                        deliverBroadcast(readBytes(in));
+                        break;
+                    case HELLO:
+                        throw new IOException("a second HELLO");
+                    default:
+                        in.skipBytes(length - 1); // from a newer version of the server
+                }
+            }// end while
+        } catch (EOFException ex) {
+            // the other node has stopped, or closed the link
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "cluster link from " + socket + " lost", ex);
+        } finally {
+            if (from != null) {
+                removeUsersOf(from);
+            }
+        }
+    }// end method
+
+    // Sends the challenge, and checks the HELLO. Returns the node it is from, null if it is not one of our peers.
+    private PeerLink handshake(Socket socket, DataInputStream in) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_SIZE];
+        random.nextBytes(challenge);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        OutputStream out = socket.getOutputStream();
+        out.write(challenge);
+        out.flush();
+
+        int length = in.readInt();
+        if (length < 1 || length > maxFrameLength || in.readByte() != HELLO) {
+            throw new IOException("the link didn't start with HELLO");
+        }
+        String id = readString(in);
+        byte[] proof = readBytes(in);
+        framesReceived.incrementAndGet();
+
+        PeerLink from = findPeer(id);
+        if (from == null || !MessageDigest.isEqual(proof, proof(challenge, id))) {
+            LOG.warning(() -> "refused the cluster link of " + id + " from " + socket + ": not in chat.cluster.peers, or a wrong chat.cluster.secret");
+            return null;
+        }
+        out.write(ACCEPTED);
+        out.flush();
+        socket.setSoTimeout(0);
+        return from;
+    }// end method
+
+    private PeerLink findPeer(String id) {
+        for (PeerLink peer : peers) {
+            if (peer.id.equals(id)) {
+                return peer;
+            }
+        }
+        return null;
+    }// end method
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }// end method
+
+    // Never longer than a frame: the length comes from the other node.
+    private byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxFrameLength) {
+            throw new IOException("a cluster line of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }// end method
+
+    // The whole roster of a node that has (re)connected: only the differences with what we knew are notified.
+    private void snapshot(DataInputStream in, PeerLink node) throws IOException {
+        Set<String> logins = new HashSet<>();
+        int count = in.readInt(); // (not trusted either: the logins are read one by one)
+        for (int i = 0; i < count; i++) {
+            String login = readString(in);
+            logins.add(key(login));
+            userOnline(login, node);
+        }
+
+        for (RemoteUser user : directory.values()) {
+            if (user.node == node && !logins.contains(key(user.login))) {
+                userOffline(user.login, node);
+            }
+        }
+    }// end method
+
+    private void userOnline(String login, PeerLink node) {
+        RemoteUser previous = directory.put(key(login), new RemoteUser(login, node));
+        if (previous == null) {
+            server.getPresence().online(login);
+        }
+    }// end method
+
+    private void userOffline(String login, PeerLink node) {
+        // Only if he is still on that node (he may have logged in on another one since):
+        RemoteUser user = directory.get(key(login));
+        if (user != null && user.node == node && directory.remove(key(login), user)) {
+            server.getPresence().offline(login);
+        }
+    }// end method
+
+    private void removeUsersOf(PeerLink node) {
+        for (RemoteUser user : directory.values()) {
+            if (user.node == node) {
+                userOffline(user.login, node);
+            }
+        }
+    }// end method
+
+    private void deliverDirect(String recipient, byte[] line) {
+        ClientProcessor client = server.findSession(recipient);
+        if (client != null) {
+            client.send(line, OutboundQueue.Lane.DIRECT);
+        }
+    }// end method
+
+    private void deliverTopic(String topic, byte[] line) {
+        SharedLines lines = new SharedLines(line);
+        for (ClientProcessor client : server.getTopicRegistry().getMembers(topic)) {
+            client.send(lines, OutboundQueue.Lane.TOPIC);
+        }
+    }// end method
+
+    private void deliverBroadcast(byte[] line) {
+        SharedLines lines = new SharedLines(line);
+        for (ClientProcessor client : server.getOnlineClients()) {
+            client.send(lines, OutboundQueue.Lane.BULK);
+        }
+    }// end method
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    public int getPeersCount() {
+        return peers.size();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    // The frames lost because a link was down for too long (its queue was full):
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    // A user of another node, and the link to that node.
+    private static class RemoteUser {
+
+        private final String login;
+        private final PeerLink node;
+
+        RemoteUser(String login, PeerLink node) {
+            this.login = login;
+            this.node = node;
+        }// end constructor
+
+    }// end class
+
+    /*
+        Our link to one other node. The local clients only queue their frames here; the link's own thread writes them,
+        and reconnects when the connection is lost.
+     */
+    private class PeerLink {
+
+        private final String id;
+        private final String host;
+        private final int port;
+        private final BlockingQueue<byte[]> frames = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+
+        PeerLink(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }// end constructor
+
+        void send(byte[] frame) {
+            if (!frames.offer(frame)) {
+                framesDropped.incrementAndGet();
+            }
+        }// end method
+
+        void run() {
+            List<byte[]> batch = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+
+                    // The challenge of the other node first, we answer it with the secret:
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] challenge = new byte[CHALLENGE_SIZE];
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    in.readFully(challenge);
+                    out.write(frame(HELLO, nodeId, proof(challenge, nodeId)));
+                    out.flush();
+                    if (in.read() != ACCEPTED) {
+                        throw new IOException(id + " refused our link (is chat.cluster.secret the same?)");
+                    }
+                    socket.setSoTimeout(0);
+
+                    // Who is logged in here. From now on the changes are sent one by one:
+                    out.write(snapshotFrame());
+                    out.flush();
+                    LOG.info(() -> "cluster link to " + id + " (" + host + ":" + port + ") is up");
+
+                    while (true) {
+                        // Everything queued for this node goes out in one write:
+                        batch.add(frames.take());
+                        frames.drainTo(batch);
+                        for (byte[] frame : batch) {
+                            out.write(frame);
+                        }
+                        out.flush();
+                        framesSent.addAndGet(batch.size());
+                        batch.clear();
+                    }
+                } catch (IOException ex) {
+                    LOG.log(Level.FINE, "cluster link to " + id + " is down", ex);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                batch.clear(); // those frames may or may not have arrived
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }// end while
+        }// end method
+
+    }// end class
+
+}// end class
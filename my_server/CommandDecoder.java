@@ -0,0 +1,286 @@
+package my_server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Cuts the bytes received from a client into command lines, and parses each line in a single pass over its bytes:
+ *
+ * <pre>
+ *     verb [target [body...]]          i.e.  msg Fares Hello, Fares. How are you today?
+ * </pre>
+ *
+ * The verb is recognized without creating a String. Only the target and the body are turned into Strings, when the
+ * command handler asks for them. The bytes are kept in one buffer that is reused for every line, and a line longer
+ * than the configured maximum is rejected instead of growing the buffer.
+ *
+ * A decoder is used by one thread at a time: the thread of its client in the blocking modes, or one NIO event loop
+ * (which parses the lines of all its connections with the same decoder).
+ *
+ * @author Fares Abu Ali
+ */
+public class CommandDecoder {
+
+    public enum Command {
+        LOGIN, LOGOFF, REGISTER, DEREGISTER, MSG, MSG_BROADCAST, JOIN, LEAVE, WHO_IS_ONLINE, WHOAMI,
+        STATS, // the server metrics, for the admins only
+        HISTORY, // the last messages of a topic
+        PRESENCE, // presence on|off: whether the client wants the online/offline lines
+        BINARY, // binary [deflate]: switch this connection to the binary protocol (see BinaryProtocol)
+        PING, PONG, // the heartbeats (either side may send ping, the other answers pong)
+        UNKNOWN, // a verb we don't know (see getVerb())
+        BLANK, // an empty line, or only white spaces
+        TOO_LONG // the line was longer than the maximum, it has been skipped
+    }
+
+    // The verbs (in lower case) and their commands. There are only a few, so a linear search is faster than hashing a String.
+    private static final byte[][] VERBS = {
+        ascii("login"), ascii("logoff"), ascii("quit"), ascii("register"), ascii("deregister"), ascii("msg"),
+        ascii("msg-broadcast"), ascii("join"), ascii("leave"), ascii("who-is-online"), ascii("who-is-connected"), ascii("whoami"),
+        ascii("stats"), ascii("history"), ascii("presence"), ascii("binary"),
+        ascii("ping"), ascii("pong")
+    };
+    private static final Command[] VERB_COMMANDS = {
+        Command.LOGIN, Command.LOGOFF, Command.LOGOFF, Command.REGISTER, Command.DEREGISTER, Command.MSG,
+        Command.MSG_BROADCAST, Command.JOIN, Command.LEAVE, Command.WHO_IS_ONLINE, Command.WHO_IS_ONLINE, Command.WHOAMI,
+        Command.STATS, Command.HISTORY, Command.PRESENCE, Command.BINARY,
+        Command.PING, Command.PONG
+    };
+
+    private final int maxLineLength;
+
+    // The buffer used by readLine(). Its unread bytes are [start, end), and [start, scanned) has no line terminator.
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private int scanned;
+    private boolean skipping; // we are skipping the rest of a too long line
+    private byte terminator; // the '\n' or '\r' that ended the last line
+
+    // The last parsed line:
+    private byte[] line;
+    private Command command;
+    private int verbStart, verbEnd;
+    private int targetStart, targetEnd;
+    private int bodyStart, lineEnd;
+    private int argumentCount; // the number of tokens after the verb
+
+    public CommandDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }// end constructor
+
+    public int getMaxLineLength() {
+        return this.maxLineLength;
+    }
+
+    /*
+        Blocking modes: reads from the client's stream until a whole line is available, and parses it.
+        Returns false at the end of the stream.
+     */
+    public boolean readLine(InputStream in) throws IOException {
+        if (buffer == null) {
+            buffer = new byte[maxLineLength + 1]; // a line of maxLineLength bytes, and its terminator
+        }
+
+        while (true) {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n' || buffer[i] == '\r') {
+                    int lineStart = start;
+                    terminator = buffer[i];
+                    start = i + 1;
+                    scanned = start;
+
+                    if (skipping) {
+                        // The end of the too long line:
+                        skipping = false;
+                        command = Command.TOO_LONG;
+                    } else {
+                        parse(buffer, lineStart, i);
+                    }
+                    return true;
+                }
+            }
+            scanned = end;
+
+            if (end - start > maxLineLength) {
+                // The buffer is full and there is still no end of line: forget these bytes, and skip until the end of the line.
+                // (the same bound as the NIO event loops: a line of exactly maxLineLength bytes is accepted)
+                skipping = true;
+                start = 0;
+                end = 0;
+                scanned = 0;
+            } else if (start > 0) {
+                // Move the beginning of the line to the start of the buffer, to make room for the rest of it:
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                scanned -= start;
+                start = 0;
+            }
+
+            int count = in.read(buffer, end, buffer.length - end);
+            if (count < 0) {
+                return false;
+            }
+            end += count;
+        }// end while
+    }// end method
+
+    /*
+        Parses one line (without its terminator) in a single pass: [from, to) of 'bytes'.
+        The NIO event loops call it directly on their read buffer, so a complete line is not even copied.
+        The bytes must not change until the handler is done with this line.
+     */
+    public Command parse(byte[] bytes, int from, int to) {
+        // The trailing spaces aren't part of the body ("login Fares Fares1234 " is the same as without the space):
+        while (to > from && isSpace(bytes[to - 1])) {
+            to--;
+        }
+        line = bytes;
+        lineEnd = to;
+        argumentCount = 0;
+
+        int i = skipSpaces(bytes, from, to);
+        verbStart = i;
+        while (i < to && !isSpace(bytes[i])) {
+            i++;
+        }
+        verbEnd = i;
+
+        if (verbStart == verbEnd) {
+            command = Command.BLANK;
+            return command;
+        }
+
+        i = skipSpaces(bytes, i, to);
+        targetStart = i;
+        while (i < to && !isSpace(bytes[i])) {
+            i++;
+        }
+        targetEnd = i;
+        if (targetStart < targetEnd) {
+            argumentCount = 1;
+        }
+
+        // The body is everything after the target (like StringUtils.split(line, " ", 3) did), we only count its tokens:
+        i = skipSpaces(bytes, i, to);
+        bodyStart = i;
+        boolean inToken = false;
+        for (; i < to; i++) {
+            boolean space = isSpace(bytes[i]);
+            if (!space && !inToken) {
+                argumentCount++;
+            }
+            inToken = !space;
+        }
+
+        command = lookupVerb(bytes, verbStart, verbEnd);
+        return command;
+    }// end method
+
+    /*
+        Blocking modes: the bytes already read after the last line, and forgets them.
+        Used when the client switches to the binary protocol: they are its first frames.
+     */
+    public byte[] takeBuffered() {
+        byte[] rest = (buffer == null) ? new byte[0] : Arrays.copyOfRange(buffer, start, end);
+        start = 0;
+        end = 0;
+        scanned = 0;
+        return rest;
+    }// end method
+
+    public byte getTerminator() {
+        return this.terminator;
+    }
+
+    // For the NIO event loops, which do their own buffering: the current line was too long and has been skipped.
+    public Command tooLong() {
+        command = Command.TOO_LONG;
+        argumentCount = 0;
+        return command;
+    }// end method
+
+    public Command getCommand() {
+        return this.command;
+    }
+
+    // The number of tokens after the verb, i.e. 2 for "login <user> <password>".
+    public int getArgumentCount() {
+        return this.argumentCount;
+    }
+
+    // The verb in lower case (only needed to answer an unknown command).
+    public String getVerb() {
+        return decode(verbStart, verbEnd).toLowerCase();
+    }
+
+    // The first token after the verb: the recipient of a msg, the topic of join/leave, the username of login/register.
+    public String getTarget() {
+        return decode(targetStart, targetEnd);
+    }
+
+    // Everything after the target: the text of a msg, the password of login/register.
+    public String getBody() {
+        return decode(bodyStart, lineEnd);
+    }
+
+    // Everything after the verb: the text of a msg-broadcast.
+    public String getRest() {
+        return decode(targetStart, lineEnd);
+    }
+
+    // The same as getBody() and getRest(), but the UTF-8 bytes (a copy: the line is overwritten by the next one).
+    public byte[] copyBody() {
+        return Arrays.copyOfRange(line, bodyStart, lineEnd);
+    }
+
+    public byte[] copyRest() {
+        return Arrays.copyOfRange(line, targetStart, lineEnd);
+    }
+
+    private String decode(int from, int to) {
+        return new String(line, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static Command lookupVerb(byte[] bytes, int from, int to) {
+        int length = to - from;
+
+        for (int v = 0; v < VERBS.length; v++) {
+            byte[] verb = VERBS[v];
+            if (verb.length != length) {
+                continue;
+            }
+
+            int i = 0;
+            while (i < length && toLowerAscii(bytes[from + i]) == verb[i]) {
+                i++;
+            }
+            if (i == length) {
+                return VERB_COMMANDS[v];
+            }
+        }
+        return Command.UNKNOWN;
+    }// end method
+
+    private static int skipSpaces(byte[] bytes, int from, int to) {
+        while (from < to && isSpace(bytes[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte toLowerAscii(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] ascii(String verb) {
+        return verb.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}// end class
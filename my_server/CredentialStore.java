@@ -0,0 +1,47 @@
+package my_server;
+
+import java.io.IOException;
+
+/**
+ * Where the registered users and their (hashed) passwords are kept.
+ *
+ * register() and verify() hash the password, so they are slow: the server only calls them through the Authenticator,
+ * on its bounded pool of threads. The usernames are compared ignoring the case.
+ *
+ * chat.users.store chooses the implementation: 'file' (FileCredentialStore, the default) or 'memory'
+ * (InMemoryCredentialStore, the users are lost when the server stops).
+ *
+ * @author Fares Abu Ali
+ */
+public interface CredentialStore {
+
+    // Returns false if the username is already taken.
+    boolean register(String username, String password);
+
+    // Returns false if the user doesn't exist or the password is wrong.
+    boolean verify(String username, String password);
+
+    // Returns false if the user didn't exist.
+    boolean deregister(String username);
+
+    boolean contains(String username);
+
+    int size();
+
+    // Called when the server stops: puts the users in the form that is the fastest to load at the next start.
+    default void compact() throws IOException {
+        // nothing to do for the stores in memory
+    }
+
+    static CredentialStore fromConfig(ServerConfig config) {
+        switch (config.getUsersStore()) {
+            case "memory":
+                return new InMemoryCredentialStore(config.getAuthIterations());
+            case "file":
+                return new FileCredentialStore(config);
+            default:
+                throw new IllegalArgumentException("unknown chat.users.store: " + config.getUsersStore() + " (expected: file, memory)");
+        }
+    }// end method
+
+}// end interface
@@ -0,0 +1,195 @@
+package my_server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import my_client.ClientProcessor;
+import my_server.CommandDecoder.Command;
+
+/**
+ * Delivers the big fan-outs (a 'msg #topic' to a huge room, a 'msg-broadcast') on a few worker threads, instead of on
+ * the thread of the sender, once they have more than chat.fanout.threshold recipients.
+ *
+ * Every recipient belongs to one shard (by the hash of its ClientProcessor), and every shard is one thread running its
+ * tasks in order. The sender only queues the fan-out and gets control back right away: the shard of the sender (see
+ * splitterOf()) takes the snapshot of the recipients, groups it by shard in one pass (each shard gets a range of
+ * indexes of the grouped array), and gives each shard its range only: the shards don't all walk the whole room.
+ *
+ * The order of the topic messages and broadcasts of a sender is kept for every recipient: the fan-outs of a sender are
+ * all split by the same shard, in the order they were submitted, and the messages of the shards reach him in the order
+ * the splits queued them (one thread per shard). While a sender still has messages in the
+ * shards, his next fan-outs (even to a small room) go through the shards too, behind them. See isPending(). That order
+ * is only kept within each lane of the recipient's outbound queue: the direct messages are in another lane, written
+ * in turn with the others (see OutboundQueue), so they don't wait behind the fan-outs here either.
+ *
+ * A sender may have MAX_PENDING messages at most in the shards: the next ones are refused (fanout() returns false)
+ * until the shards have caught up, so a flooding sender can't grow their queues without bound.
+ *
+ * @author Fares Abu Ali
+ */
+public class FanoutShards {
+
+    private static final Logger LOG = Logger.getLogger(FanoutShards.class.getName());
+
+    // The messages of one sender that may wait in the shards:
+    private static final int MAX_PENDING = 64;
+
+    private final int threshold;
+    private final ServerMetrics metrics;
+    private final List<BlockingQueue<Runnable>> shards = new ArrayList<>();
+
+    private final LongAdder parallelFanouts = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    public FanoutShards(ServerConfig config, ServerMetrics metrics) {
+        this.threshold = config.getFanoutThreshold();
+        this.metrics = metrics;
+
+        for (int i = 0; i < config.getFanoutShards(); i++) {
+            BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+            shards.add(tasks);
+
+            Thread thread = new Thread(() -> runTasks(tasks), "fanout-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }// end constructor
+
+    private int shardOf(ClientProcessor client) {
+        return (System.identityHashCode(client) & Integer.MAX_VALUE) % shards.size();
+    }
+
+    // The shard that splits all the fan-outs of a sender ('pending' is his own counter), so they are split in order:
+    private int splitterOf(AtomicInteger pending) {
+        return (System.identityHashCode(pending) & Integer.MAX_VALUE) % shards.size();
+    }
+
+    /*
+        Whether a message of this sender with this many recipients must go through the shards: because it is big, or
+        because an earlier message of the same sender is still there. 'pending' is the counter of the sender (his messages
+        still in the shards), only his own thread submits his messages.
+     */
+    public boolean isPending(int recipients, AtomicInteger pending) {
+        return recipients >= threshold || pending.get() > 0;
+    }// end method
+
+    /*
+        Sends the message to all the 'recipients' but 'excluded' (may be null), as they are when its splitter gets to it
+        ('recipients' must be a live, concurrent view). Returns false (and sends nothing) if the sender already has
+        MAX_PENDING messages in the shards.
+     */
+    public boolean fanout(ChatMessage message, Collection<ClientProcessor> recipients, ClientProcessor excluded, AtomicInteger pending) {
+        if (pending.get() >= MAX_PENDING) {
+            refused.increment();
+            return false;
+        }
+        parallelFanouts.increment();
+        Command command = metrics.getCurrentCommand(); // its messages out are counted for the sender's command
+
+        // The message is pending until the last of its shards is done (or its split, if nobody gets it):
+        pending.incrementAndGet();
+        shards.get(splitterOf(pending)).add(() -> {
+            metrics.commandStarted(command);
+            try {
+                split(message, recipients, excluded, pending, command);
+            } finally {
+                metrics.commandEnded();
+            }
+        });
+        return true;
+    }// end method
+
+    // On the splitter: gives each shard its own recipients of the message.
+    private void split(ChatMessage message, Collection<ClientProcessor> recipients, ClientProcessor excluded, AtomicInteger pending, Command command) {
+        // One pass over the snapshot: the recipients of shard s end up in grouped[start[s]] .. grouped[start[s + 1] - 1]
+        ClientProcessor[] snapshot = recipients.toArray(new ClientProcessor[0]);
+        int[] shardOf = new int[snapshot.length];
+        int[] start = new int[shards.size() + 1];
+        for (int i = 0; i < snapshot.length; i++) {
+            shardOf[i] = (snapshot[i] == excluded) ? -1 : shardOf(snapshot[i]);
+            if (shardOf[i] >= 0) {
+                start[shardOf[i] + 1]++;
+            }
+        }
+        int tasks = 0;
+        for (int s = 0; s < shards.size(); s++) {
+            tasks += (start[s + 1] > 0) ? 1 : 0;
+            start[s + 1] += start[s];
+        }
+        if (tasks == 0) {
+            pending.decrementAndGet(); // nobody to send it to
+            return;
+        }
+        ClientProcessor[] grouped = new ClientProcessor[start[shards.size()]];
+        int[] next = Arrays.copyOf(start, shards.size());
+        for (int i = 0; i < snapshot.length; i++) {
+            if (shardOf[i] >= 0) {
+                grouped[next[shardOf[i]]++] = snapshot[i];
+            }
+        }
+
+        AtomicInteger remaining = new AtomicInteger(tasks);
+        for (int s = 0; s < shards.size(); s++) {
+            int from = start[s];
+            int to = start[s + 1];
+            if (from == to) {
+                continue;
+            }
+            shards.get(s).add(() -> {
+                metrics.commandStarted(command);
+                try {
+                    for (int i = from; i < to; i++) {
+                        grouped[i].send(message);
+                    }
+                } finally {
+                    metrics.commandEnded();
+                    if (remaining.decrementAndGet() == 0) {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }// end method
+
+    private static void runTasks(BlockingQueue<Runnable> tasks) {
+        while (true) {
+            try {
+                tasks.take().run();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, Thread.currentThread().getName() + " fan-out failed", ex);
+            }
+        }// end while
+    }// end method
+
+    public int getShardsCount() {
+        return shards.size();
+    }
+
+    public long getParallelFanouts() {
+        return parallelFanouts.sum();
+    }
+
+    // The messages refused because their sender had MAX_PENDING messages in the shards:
+    public long getRefusedCount() {
+        return refused.sum();
+    }
+
+    // The tasks waiting in all the shards right now:
+    public int getQueuedTasks() {
+        int total = 0;
+        for (BlockingQueue<Runnable> tasks : shards) {
+            total += tasks.size();
+        }
+        return total;
+    }
+
+}// end class
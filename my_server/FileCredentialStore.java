@@ -0,0 +1,214 @@
+package my_server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The users kept on disk, so they survive a restart of the server.
+ *
+ * Every registration / deregistration is first appended to a write-ahead log (chat-data/users.wal):
+ *
+ * <pre>
+ *     + fares 100000:salt:hash
+ *     - motaz
+ * </pre>
+ *
+ * and every chat.users.snapshot.every changes the whole table is written to chat-data/users.snapshot (one "user hash"
+ * per line) and the log is emptied. At startup the snapshot is loaded and the few lines of the log after it are
+ * replayed, so the startup doesn't depend on how many changes were ever made. Replaying a line twice does no harm,
+ * so a crash between writing the snapshot and emptying the log is fine too.
+ *
+ * The users are also in memory (see InMemoryCredentialStore): verify() never reads the disk.
+ *
+ * @author Fares Abu Ali
+ */
+public class FileCredentialStore extends InMemoryCredentialStore {
+
+    private static final Logger LOG = Logger.getLogger(FileCredentialStore.class.getName());
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final int snapshotEvery;
+
+    // The writers of the files (register/deregister) take turns; the readers don't need it.
+    // Not 'synchronized': a virtual thread waiting for a monitor would pin its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel log; // opened on the first change
+    private int logEntries;
+
+    public FileCredentialStore(ServerConfig config) {
+        super(config.getAuthIterations());
+        Path directory = Path.of(config.getDataDirectory());
+        this.snapshotFile = directory.resolve("users.snapshot");
+        this.logFile = directory.resolve("users.wal");
+        this.snapshotEvery = config.getUsersSnapshotEvery();
+
+        try {
+            loadSnapshot();
+            replayLog();
+            LOG.fine(() -> users.size() + " users loaded, " + logEntries + " changes replayed");
+
+            if (Files.exists(logFile) && Files.size(logFile) > 0) {
+                // Start with an empty log (this also drops a line cut in the middle by a crash):
+                openLog();
+                writeSnapshot();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("could not load the users from " + directory, ex);
+        }
+    }// end constructor
+
+    @Override
+    public boolean register(String username, String password) {
+        if (contains(username)) {
+            return false;
+        }
+        PasswordHash hash = PasswordHash.create(password, iterations); // the slow part, before taking the lock
+
+        lock.lock();
+        try {
+            if (contains(username)) {
+                return false; // registered by somebody else in the meantime
+            }
+            append("+ " + key(username) + " " + hash.encode());
+            users.put(key(username), hash);
+            snapshotIfDue();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    @Override
+    public boolean deregister(String username) {
+        lock.lock();
+        try {
+            if (!contains(username)) {
+                return false;
+            }
+            append("- " + key(username));
+            users.remove(key(username));
+            snapshotIfDue();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    // The snapshot only: the next start has no log to replay.
+    @Override
+    public void compact() throws IOException {
+        lock.lock();
+        try {
+            if (logEntries > 0) {
+                writeSnapshot();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    // Called with the lock. The change is on the disk before it is applied in memory.
+    private void append(String line) {
+        try {
+            openLog();
+            ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                log.write(bytes);
+            }
+            log.force(false);
+            logEntries++;
+        } catch (IOException ex) {
+            throw new UncheckedIOException("could not write " + logFile, ex);
+        }
+    }// end method
+
+    private void openLog() throws IOException {
+        if (log == null) {
+            Files.createDirectories(logFile.getParent());
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }// end method
+
+    // Called with the lock, after the change is applied in memory (so it is in the snapshot).
+    private void snapshotIfDue() {
+        if (logEntries >= snapshotEvery) {
+            try {
+                writeSnapshot();
+            } catch (IOException ex) {
+                // The log still has everything, we'll try again with the next change:
+                LOG.log(Level.WARNING, "could not write " + snapshotFile, ex);
+            }
+        }
+    }// end method
+
+    // Writes the table to a temporary file first and then renames it, so there is always a complete snapshot on the disk.
+    private void writeSnapshot() throws IOException {
+        Path temporary = snapshotFile.resolveSibling("users.snapshot.tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, PasswordHash> user : users.entrySet()) {
+                writer.write(user.getKey() + " " + user.getValue().encode());
+                writer.newLine();
+            }
+        }
+        try (FileChannel written = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.truncate(0);
+        logEntries = 0;
+    }// end method
+
+    private void loadSnapshot() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    users.put(line.substring(0, space), PasswordHash.parse(line.substring(space + 1)));
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            // no snapshot yet
+        }
+    }// end method
+
+    private void replayLog() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                try {
+                    if (parts.length == 3 && parts[0].equals("+")) {
+                        users.put(parts[1], PasswordHash.parse(parts[2]));
+                    } else if (parts.length == 2 && parts[0].equals("-")) {
+                        users.remove(parts[1]);
+                    } else {
+                        break;
+                    }
+                } catch (IllegalArgumentException ex) {
+                    break; // the server died in the middle of this line, it was never acknowledged
+                }
+                logEntries++;
+            }
+        } catch (NoSuchFileException ex) {
+            // nothing changed since the snapshot
+        }
+    }// end method
+
+}// end class
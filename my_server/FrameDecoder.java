@@ -0,0 +1,140 @@
+package my_server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Cuts the bytes of a binary client into frames (see BinaryProtocol), like CommandDecoder cuts the text ones into lines.
+ *
+ * The blocking modes read the frames with readFrame(). The NIO event loops find the frames in their own buffers with
+ * frameEnd() and parse() them in place.
+ *
+ * @author Fares Abu Ali
+ */
+public class FrameDecoder {
+
+    private final int maxFrameLength;
+
+    // The buffer of readFrame(). Its unread bytes are [start, end).
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    // The second byte of a "\r\n" / "\n\r" ending the 'binary' command line, skipped if it is the first byte here:
+    private byte skip = -1;
+
+    // The last parsed frame:
+    private int opcode;
+    private byte[] bytes;
+    private int payloadStart;
+    private int payloadEnd;
+
+    public FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }// end constructor
+
+    /*
+        Blocking modes: starts with the bytes the CommandDecoder had already read after the 'binary' line, which ended
+        with 'terminator'.
+     */
+    public FrameDecoder(int maxFrameLength, byte[] buffered, byte terminator) {
+        this(maxFrameLength);
+        this.buffer = Arrays.copyOf(buffered, Math.max(buffered.length, maxFrameLength + 5));
+        this.end = buffered.length;
+        this.skip = otherTerminator(terminator);
+    }// end constructor
+
+    // The other half of a two-byte end of line.
+    public static byte otherTerminator(byte terminator) {
+        return (byte) (terminator == '\r' ? '\n' : '\r');
+    }
+
+    /*
+        Blocking modes: reads from the client's stream until a whole frame is available, and parses it.
+        Returns false at the end of the stream. Throws IOException if the frame is invalid (the client must be disconnected).
+     */
+    public boolean readFrame(InputStream in) throws IOException {
+        if (buffer == null) {
+            buffer = new byte[maxFrameLength + 5]; // + the longest varint
+        }
+
+        while (true) {
+            if (skip != -1 && start < end) {
+                if (buffer[start] == skip) {
+                    start++;
+                }
+                skip = -1;
+            }
+
+            int frameEnd = frameEnd(buffer, start, end);
+            if (frameEnd > 0) {
+                parse(buffer, start, frameEnd);
+                start = frameEnd;
+                return true;
+            }
+
+            if (start > 0) {
+                // Move the beginning of the frame to the start of the buffer, to make room for the rest of it:
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+
+            int count = in.read(buffer, end, buffer.length - end);
+            if (count < 0) {
+                return false;
+            }
+            end += count;
+        }// end while
+    }// end method
+
+    /*
+        The index after the frame starting at 'from', or -1 if it isn't complete in [from, to) yet.
+        Throws IOException if its length is 0 or longer than the maximum.
+     */
+    public int frameEnd(byte[] bytes, int from, int to) throws IOException {
+        int lengthEnd = BinaryProtocol.varintEnd(bytes, from, to);
+        if (lengthEnd < 0) {
+            return -1;
+        }
+        int length = BinaryProtocol.readVarint(bytes, from);
+        if (length < 1 || length > maxFrameLength) {
+            throw new IOException("invalid frame length: " + length);
+        }
+        return (to - lengthEnd >= length) ? lengthEnd + length : -1;
+    }// end method
+
+    // Parses the complete frame [from, to). The bytes must not change until the handler is done with this frame.
+    public void parse(byte[] frame, int from, int to) {
+        int lengthEnd = from;
+        while (frame[lengthEnd++] < 0) {
+            // the bytes of the length
+        }
+        this.bytes = frame;
+        this.opcode = frame[lengthEnd] & 0xFF;
+        this.payloadStart = lengthEnd + 1;
+        this.payloadEnd = to;
+    }// end method
+
+    public int getMaxFrameLength() {
+        return this.maxFrameLength;
+    }
+
+    public int getOpcode() {
+        return this.opcode;
+    }
+
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    public int getPayloadStart() {
+        return this.payloadStart;
+    }
+
+    public int getPayloadEnd() {
+        return this.payloadEnd;
+    }
+
+}// end class
@@ -0,0 +1,56 @@
+package my_server;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The users in a ConcurrentHashMap only (like the old usersTable, but with hashed passwords).
+ * The logins read it without taking a lock, so they don't wait for each other.
+ *
+ * @author Fares Abu Ali
+ */
+public class InMemoryCredentialStore implements CredentialStore {
+
+    // By username in lower case, so "Fares" and "fares" are the same user:
+    protected final ConcurrentHashMap<String, PasswordHash> users = new ConcurrentHashMap<>();
+    protected final int iterations;
+
+    public InMemoryCredentialStore(int iterations) {
+        this.iterations = iterations;
+    }// end constructor
+
+    protected static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public boolean register(String username, String password) {
+        if (users.containsKey(key(username))) {
+            return false; // don't spend the time of a hash for nothing
+        }
+        // One atomic step: two clients registering the same username at the same time can't both succeed.
+        return users.putIfAbsent(key(username), PasswordHash.create(password, iterations)) == null;
+    }// end method
+
+    @Override
+    public boolean verify(String username, String password) {
+        PasswordHash hash = users.get(key(username));
+        return hash != null && hash.matches(password);
+    }// end method
+
+    @Override
+    public boolean deregister(String username) {
+        return users.remove(key(username)) != null;
+    }
+
+    @Override
+    public boolean contains(String username) {
+        return users.containsKey(key(username));
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+}// end class
@@ -1,12 +1,16 @@
 package my_server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import my_client.ClientProcessor;
@@ -17,76 +21,412 @@ import my_client.ClientProcessor;
  */
 public class MyServer extends Thread {
 
-    private ServerSocket serverSocket;
+    private static final Logger LOG = Logger.getLogger(MyServer.class.getName());
+
     private int serverPort;
+    private final ServerConfig config;
+
+    // Writes the outbound queues of the clients in the blocking modes (in NIO mode the event loops write them):
+    private ExecutorService writerExecutor;
+
+    // Delays the writers by chat.flush.delay, so more messages can be coalesced in one write (null if there is no delay):
+    private ScheduledExecutorService flushScheduler;
+
+    /*
+        The threads accepting the connections (chat.acceptors). Each one keeps the connected clients it has accepted (logged in
+        or not) in its own concurrent set: the client threads remove themselves from it while others iterate it.
+     */
+    private final Acceptor[] acceptors;
+
+    // Whether the acceptors have a listening socket each (SO_REUSEPORT), or share one:
+    private boolean reusePort;
+
+    // VIRTUAL_THREADS mode: runs the ClientProcessors (null in the other modes).
+    private ExecutorService clientExecutor;
+
+    // Set once the server has started to stop (see drain()):
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    // The sessions of the last server, given back to their users when they login (null if chat.warm.restart is false):
+    private final SessionSnapshot sessionSnapshot;
+
+    /*
+        The logged in clients, by their login in lower case (logins are compared ignoring the case).
+        So a direct message finds its recipient in O(1) instead of scanning the whole clientsList,
+        and the client threads can look it up and update it concurrently.
+     */
+    private final ConcurrentHashMap<String, ClientProcessor> sessions = new ConcurrentHashMap<>();
+
+    // Which clients have joined which topic:
+    private final TopicRegistry topicRegistry = new TopicRegistry();
+
+    /*
+        The registered users, with their hashed passwords (on disk by default, see chat.users.store).
+        The passwords are checked by the authenticator on its own threads, not on the threads reading the commands.
+     */
+    private final Authenticator authenticator;
+
+    // The history of the topics on disk (null if chat.history is false):
+    private final TopicLog topicLog;
+
+    // The direct messages waiting for their offline recipients (null if chat.mailbox is false):
+    private final OfflineMailbox offlineMailbox;
 
-    private ArrayList<ClientProcessor> clientsList = new ArrayList<>();
+    // The other servers of the cluster (null if chat.cluster.port isn't set):
+    private final ClusterNode cluster;
 
-    // Simple Table to store the username and password for all registered clients:
-    public static Hashtable<String, String> usersTable = new Hashtable<>();
+    // Sends the online/offline changes to the clients, in batches:
+    private final PresenceNotifier presence;
+
+    // Delivers the big fan-outs on their own threads (null if chat.fanout.threshold is 0):
+    private final FanoutShards fanoutShards;
+
+    // The ids of the user and topic names in the binary protocol, the same for all the connections:
+    private final SymbolTable symbols;
+
+    // The heartbeats and the idle/login timeouts of all the connections, on one thread (a tick per second):
+    private final TimerWheel timerWheel = new TimerWheel("timer-wheel", 1000, 512);
+
+    // Counters and histograms of the hot paths (the 'stats' command, and JMX):
+    private final ServerMetrics metrics = new ServerMetrics(this);
 
     MyServer(int serverPort) {
+        this(serverPort, new ServerConfig());
+    }// end constructor
+
+    public MyServer(int serverPort, ServerConfig config) {
         this.serverPort = serverPort;
+        this.config = config;
+        this.authenticator = new Authenticator(CredentialStore.fromConfig(config), config);
+        this.topicLog = config.isHistoryEnabled() ? new TopicLog(config) : null;
+        this.offlineMailbox = config.isMailboxEnabled() ? new OfflineMailbox(config) : null;
+        this.cluster = config.isClustered() ? new ClusterNode(this, config) : null;
+        this.presence = new PresenceNotifier(this, config);
+        this.fanoutShards = (config.getFanoutThreshold() > 0) ? new FanoutShards(config, metrics) : null;
+        this.symbols = new SymbolTable(config.getBinarySymbols());
+        this.sessionSnapshot = config.isWarmRestart() ? new SessionSnapshot(config) : null;
+
+        this.acceptors = new Acceptor[config.getAcceptors()];
+        for (int i = 0; i < acceptors.length; i++) {
+            acceptors[i] = new Acceptor(this, i);
+        }
     }// end constructor
 
-    public List<ClientProcessor> getClientsList() {
-        return this.clientsList;
+    public Acceptor[] getAcceptors() {
+        return this.acceptors;
+    }
+
+    public boolean isReusePort() {
+        return this.reusePort;
+    }
+
+    // Whether this client is still connected (it hasn't been removed since it was accepted):
+    public boolean isConnected(ClientProcessor clientProcess) {
+        Acceptor acceptor = clientProcess.getAcceptor();
+        return acceptor != null && acceptor.getClients().contains(clientProcess);
+    }
+
+    public int getConnectedCount() {
+        int count = 0;
+        for (Acceptor acceptor : acceptors) {
+            count += acceptor.getClients().size();
+        }
+        return count;
     }
 
     //=================================================
-    public Hashtable<String, String> getUsersTable() {
-        return this.usersTable;
+    public Authenticator getAuthenticator() {
+        return this.authenticator;
+    }
+
+    public boolean isRegisteredUser(String username) {
+        return authenticator.isRegistered(username);
     }
 
-    public boolean registerNewUser(String username, String password) {
+    public CompletableFuture<Boolean> deregisterUser(String username) {
+        return authenticator.deregister(username);
+    }
+    //=================================================
+
+    // Called once for every accepted connection, before its first command is read.
+    public void addClientProcess(ClientProcessor clientProcess, Acceptor acceptor) {
+        clientProcess.setAcceptor(acceptor);
+        acceptor.getClients().add(clientProcess);
+        metrics.connectionOpened();
+
+        long deadline = clientProcess.firstDeadline();
+        if (deadline >= 0) {
+            timerWheel.schedule(clientProcess, deadline);
+        }
+    }// end method
+
+    public void removeClientProcess(ClientProcessor clientProcess) {
+        // It may be called more than once for the same client (i.e. logoff, then the end of its thread), count it once:
+        if (clientProcess.getAcceptor().getClients().remove(clientProcess)) {
+            metrics.connectionClosed();
+        }
+        topicRegistry.leaveAll(clientProcess.getTopicSet(), clientProcess);
 
-        //First, check if this username already exists or not:
-        if (this.usersTable.get(username) == null) {
-            //then this username doesn't exist, so add him:
-            this.usersTable.put(username, password);
-            return true; // registered user successfully
+        if (clientProcess.getLogin() != null) {
+            // remove() with the value too: if the same user has logged in again from another terminal, keep that newer session.
+            if (sessions.remove(sessionKey(clientProcess.getLogin()), clientProcess)) {
+                // However he has gone (logoff, timeout, lost connection), the others are told once:
+                presence.offline(clientProcess.getLogin());
+                if (cluster != null) {
+                    cluster.publishOffline(clientProcess.getLogin());
+                }
+            }
         }
-        return false; // didn't register the user because the username is already taken.
     }// end method
 
-    public boolean deregisterUser(String username) {
-        return (this.usersTable.remove(username) != null);
+    //=================================================
+    private static String sessionKey(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+
+    // Called once the client has logged in successfully. If this user was already logged in elsewhere, the newest session wins.
+    public void bindSession(String login, ClientProcessor clientProcess) {
+        sessions.put(sessionKey(login), clientProcess);
+        if (cluster != null) {
+            cluster.publishOnline(login);
+        }
+    }
+
+    public ClientProcessor findSession(String login) {
+        return sessions.get(sessionKey(login));
+    }
+
+    public ServerConfig getConfig() {
+        return this.config;
+    }
+
+    public ExecutorService getWriterExecutor() {
+        return this.writerExecutor;
+    }
+
+    public ScheduledExecutorService getFlushScheduler() {
+        return this.flushScheduler;
+    }
+
+    public TimerWheel getTimerWheel() {
+        return this.timerWheel;
+    }
+
+    public FanoutShards getFanoutShards() {
+        return this.fanoutShards;
+    }
+
+    public SessionSnapshot getSessionSnapshot() {
+        return this.sessionSnapshot;
+    }
+
+    public boolean isDraining() {
+        return this.draining.get();
+    }
+
+    public SymbolTable getSymbols() {
+        return this.symbols;
+    }
+
+    public PresenceNotifier getPresence() {
+        return this.presence;
+    }
+
+    public TopicLog getTopicLog() {
+        return this.topicLog;
+    }
+
+    public OfflineMailbox getOfflineMailbox() {
+        return this.offlineMailbox;
+    }
+
+    public ClusterNode getCluster() {
+        return this.cluster;
+    }
+
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public TopicRegistry getTopicRegistry() {
+        return this.topicRegistry;
+    }
+
+    // The logged in clients only (the guests who didn't login yet aren't included):
+    public Collection<ClientProcessor> getOnlineClients() {
+        return sessions.values();
     }
     //=================================================
 
-    public void removeClientProcess(ClientProcessor clientProcess) {
-        clientsList.remove(clientProcess);
+    private void registerTestUsers() {
+        // Register Some Users For The Sake of Testing (if they aren't in the users file already):
+        CredentialStore users = authenticator.getStore();
+        users.register("Fares", "Fares1234"); // username, password
+        users.register("Motaz", "motz_789"); // username, password
+        users.register("Mohammad", "moh123"); // username, password
     }// end method
 
     @Override
     public void run() {
+        boolean nio = config.getMode() == ServerConfig.Mode.NIO;
         try {
-            this.serverSocket = new ServerSocket(serverPort);
-            System.out.println("Server is listening on port: " + this.serverSocket.getLocalPort());
-            // The System will choose an available port and give it to the serverSocket to listen on it.
+            int port = bindAcceptors(nio);
+            if (config.isTestUsersEnabled()) {
+                registerTestUsers(); // before the port is printed, so the first clients can already login
+            }
+            metrics.registerMBean(port);
+            if (cluster != null) {
+                cluster.start();
+            }
+
+            if (nio) {
+                NioEventLoop[] loops = new NioEventLoop[config.getEventLoops()];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new NioEventLoop(this, i);
+                    loops[i].start();
+                }
+                for (int i = 0; i < acceptors.length; i++) {
+                    acceptors[i].setEventLoops(loops, i);
+                }
+            } else if (config.getMode() == ServerConfig.Mode.VIRTUAL_THREADS) {
+                // The ClientProcessors (and their writers) run on virtual threads instead of platform threads:
+                clientExecutor = newVirtualThreadPerTaskExecutor();
+                writerExecutor = clientExecutor;
+            } else {
+                // A writer is only busy while its client has something queued, so the idle clients don't hold a writer thread:
+                writerExecutor = Executors.newCachedThreadPool();
+            }
+            if (!nio && config.getFlushDelayMillis() > 0) {
+                flushScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "flush-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+
+            // The System will choose an available port and give it to the listening socket.
             // So I am here printing out the number of the chosen serverPort, so the ckients can know what serverPort to connect on.
+            System.out.println("Server is listening on port: " + port
+                    + (nio ? " (nio, " + config.getEventLoops() + " event loops)" : "")
+                    + (acceptors.length > 1 ? " (" + acceptors.length + " acceptors" + (reusePort ? ", SO_REUSEPORT)" : ")") : ""));
 
-            // Register Some Users in the users hastable For The Sake of Testing:
-            usersTable.put("Fares", "Fares1234"); // username, password
-            usersTable.put("Motaz", "motz_789"); // username, password
-            usersTable.put("Mohammad", "moh123"); // username, password
+            // On a SIGTERM (or System.exit()) the server is drained before the JVM stops:
+            Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "drain"));
 
-            //System.out.println(usersTable);
-            while (true) {
-                System.out.println("Waiting for client connection..");
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted connection from " + clientSocket);
+            // The acceptors keep the server running, this thread is done:
+            for (Acceptor acceptor : acceptors) {
+                acceptor.start();
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "The server could not start accepting connections", e);
+        }
+    }// end method
 
-                //Multi-Threading: Now the server can handle multiple clients concurrently
-                ClientProcessor client = new ClientProcessor(this, clientSocket);
-                //In order for those 'clients' to access the 'Server' instance, pass 'this' to the ClientProcessor constructor.
+    /*
+        Binds the listening sockets of the acceptors to the server port. With SO_REUSEPORT every acceptor binds its own (to the
+        port chosen for the first one), otherwise they all share the first one. Returns the port.
+     */
+    private int bindAcceptors(boolean nio) throws IOException {
+        reusePort = acceptors.length > 1 && Acceptor.isReusePortSupported(nio);
+        if (acceptors.length > 1 && !reusePort) {
+            LOG.info("SO_REUSEPORT isn't supported here, the " + acceptors.length + " acceptors share one listening socket.");
+        }
 
-                clientsList.add(client); // add this client to the list
-                client.start();
+        int port = acceptors[0].bind(serverPort, nio, reusePort);
+        for (int i = 1; i < acceptors.length; i++) {
+            if (reusePort) {
+                acceptors[i].bind(port, nio, true);
+            } else {
+                acceptors[i].share(acceptors[0]);
+            }
+        }
+        return port;
+    }// end method
 
-            }// end while
-        } catch (Exception e) {
-            e.printStackTrace();
+    /*
+        Stops the server gracefully from the shutdown hook (i.e. a SIGTERM), once:
+        stops accepting, says goodbye to the clients, gives the writers chat.drain.timeout to empty the outbound queues,
+        writes the snapshot of the sessions (see SessionSnapshot) with what couldn't be written, waits for the disk work
+        of the topic log and the mailboxes, compacts the users file, and closes the connections.
+     */
+    public void drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long deadline = start + config.getDrainTimeoutMillis();
+
+        for (Acceptor acceptor : acceptors) {
+            acceptor.close();
+        }
+        for (Acceptor acceptor : acceptors) {
+            for (ClientProcessor client : acceptor.getClients()) {
+                client.notifyDrain();
+            }
+        }
+
+        try {
+            while (System.currentTimeMillis() < deadline
+                    && (metrics.getQueuedMessages() > 0 || (fanoutShards != null && fanoutShards.getQueuedTasks() > 0))) {
+                Thread.sleep(20);
+            }
+
+            // The logged in users, with what is still queued for them (the slow ones):
+            List<SessionSnapshot.Session> snapshot = new ArrayList<>();
+            int pendingLines = 0;
+            for (ClientProcessor client : sessions.values()) {
+                SessionSnapshot.Session session = new SessionSnapshot.Session(client.getLogin(),
+                        new ArrayList<>(client.getTopicSet()), client.takePendingLines());
+                snapshot.add(session);
+                pendingLines += session.getPendingLines().size();
+            }
+            if (sessionSnapshot != null) {
+                sessionSnapshot.write(snapshot);
+            }
+
+            long remaining = Math.max(1, deadline - System.currentTimeMillis());
+            if (topicLog != null && !topicLog.awaitIdle(remaining)) {
+                LOG.warning("the topic log wasn't written completely before the server stopped");
+            }
+            if (offlineMailbox != null && !offlineMailbox.awaitIdle(Math.max(1, deadline - System.currentTimeMillis()))) {
+                LOG.warning("the mailboxes weren't written completely before the server stopped");
+            }
+            authenticator.getStore().compact();
+
+            System.out.println("Server drained in " + (System.currentTimeMillis() - start) + " ms: " + snapshot.size()
+                    + " sessions and " + pendingLines + " undelivered lines kept");
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "could not write the state of the server", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Acceptor acceptor : acceptors) {
+            for (ClientProcessor client : acceptor.getClients()) {
+                client.closeSocket();
+            }
+        }
+    }// end method
+
+    // Blocking modes: runs a ClientProcessor accepted by one of the acceptors.
+    void startClient(ClientProcessor client, String threadName) {
+        if (clientExecutor != null) {
+            clientExecutor.execute(client);
+        } else {
+            new Thread(client, threadName).start();
+        }
+    }// end method
+
+    /*
+        Executors.newVirtualThreadPerTaskExecutor() only exists since Java 21, and this code still has to compile with older JDKs,
+        so it is looked up by reflection. On an older runtime we fall back to a cached pool of platform threads.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.warning("Virtual threads need Java 21 or newer, running the clients on platform threads instead.");
+            return Executors.newCachedThreadPool();
         }
     }// end method
 
@@ -0,0 +1,471 @@
+package my_server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import my_client.ClientProcessor;
+
+/**
+ * One event-loop thread of the NIO server mode.
+ *
+ * Instead of one blocked thread per client, every loop owns a Selector and a share of the non-blocking client
+ * channels. It reads whatever bytes are available, cuts them into lines and hands each line to
+ * ClientProcessor.processCommand(), so the NIO mode understands exactly the same commands as the thread mode.
+ * The clients who have switched to the binary protocol are cut into frames instead (ClientProcessor.processFrame()).
+ *
+ * @author Fares Abu Ali
+ */
+public class NioEventLoop extends Thread {
+
+    private static final Logger LOG = Logger.getLogger(NioEventLoop.class.getName());
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final MyServer server;
+    private final Selector selector;
+
+    // How many queued messages are handed to the socket in one gathering write() (chat.flush.batch):
+    private final int maxGather;
+
+    // With chat.flush.delay the other threads don't wake the loop up for every message: it flushes at least every 'flushDelay' ms.
+    private final long flushDelay;
+
+    // Channels accepted by the acceptor threads, waiting to be registered with this loop's selector:
+    private final Queue<NewChannel> newChannels = new ConcurrentLinkedQueue<>();
+
+    // Connections that have queued output since the last time this loop flushed them:
+    private final Queue<Connection> flushRequests = new ConcurrentLinkedQueue<>();
+
+    // Connections whose login/register has been checked, and can be read again:
+    private final Queue<Connection> resumeRequests = new ConcurrentLinkedQueue<>();
+
+    // Shared by all the connections of this loop, so an idle connection doesn't hold a read buffer of its own:
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    // Parses the lines of all the connections of this loop (one line at a time, so one decoder is enough):
+    private final CommandDecoder decoder;
+
+    // The same for the frames of the binary clients:
+    private final FrameDecoder frames;
+
+    NioEventLoop(MyServer server, int index) throws IOException {
+        super("nio-event-loop-" + index);
+        this.server = server;
+        this.selector = Selector.open();
+        this.maxGather = server.getConfig().getFlushBatchSize();
+        this.decoder = new CommandDecoder(server.getConfig().getMaxLineLength());
+        this.frames = new FrameDecoder(server.getConfig().getMaxLineLength());
+        this.flushDelay = server.getConfig().getFlushDelayMillis();
+    }// end constructor
+
+    // Called by the acceptor threads. The client will be in the shard of 'acceptor':
+    void register(SocketChannel channel, Acceptor acceptor) {
+        newChannels.add(new NewChannel(channel, acceptor));
+        selector.wakeup();
+    }// end method
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(flushDelay); // 0 means: until something happens
+
+                registerNewChannels();
+                resumeRequested();
+                flushRequested();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (IOException ex) {
+                        close(connection);
+                    } catch (RuntimeException ex) {
+                        // A bug in the handling of one command: only its connection is lost, not the whole loop
+                        LOG.log(Level.WARNING, getName() + " failed on the connection of " + connection.client.getLogin(), ex);
+                        close(connection);
+                    }
+                }
+
+                // The commands handled above may have queued replies on the connections of this loop:
+                flushRequested();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, getName() + " failed to select", ex);
+            }
+        }// end while
+    }// end method
+
+    private void registerNewChannels() throws IOException {
+        NewChannel accepted;
+        while ((accepted = newChannels.poll()) != null) {
+            SocketChannel channel = accepted.channel;
+            channel.configureBlocking(false);
+
+            Connection connection = new Connection(channel);
+            connection.client = new ClientProcessor(server, channel.socket(), connection::requestFlush);
+            server.addClientProcess(connection.client, accepted.acceptor); // add this client to the shard of its acceptor
+
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException ex) {
+                close(connection);
+            }
+        }
+    }// end method
+
+    private void flushRequested() {
+        Connection connection;
+        while ((connection = flushRequests.poll()) != null) {
+            connection.flushRequested.set(false);
+            try {
+                flush(connection);
+            } catch (IOException ex) {
+                close(connection);
+            }
+        }
+    }// end method
+
+    private void read(Connection connection) throws IOException {
+        readBuffer.clear();
+        int count = connection.channel.read(readBuffer);
+
+        if (count < 0) {
+            // The client has closed the connection:
+            close(connection);
+            return;
+        }
+
+        processInput(connection, readBuffer.array(), 0, count);
+    }// end method
+
+    // Handles the complete lines of [from, to), and keeps the beginning of the last line if its end hasn't arrived yet.
+    private void processInput(Connection connection, byte[] bytes, int from, int to) throws IOException {
+        if (connection.client.isBinary()) {
+            processFrames(connection, bytes, from, to);
+            return;
+        }
+        int lineStart = from;
+
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                decodeLine(connection, bytes, lineStart, i);
+                lineStart = i + 1;
+
+                if (connection.client.processCommand(decoder)) {
+                    // 'logoff' or 'deregister': the server no longer needs to read from this client.
+                    // The connection is closed by flush() once the last replies are written.
+                    connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+
+                if (connection.client.isBinary()) {
+                    // 'binary': the rest is frames (the second byte of the end of this line, if any, isn't one).
+                    connection.skip = FrameDecoder.otherTerminator(bytes[i]);
+                    if (!suspendIfAuthenticating(connection, bytes, lineStart, to)) {
+                        processFrames(connection, bytes, lineStart, to);
+                    }
+                    return;
+                }
+                if (suspendIfAuthenticating(connection, bytes, lineStart, to)) {
+                    return;
+                }
+            }
+        }
+
+        // Keep the beginning of a line whose end hasn't arrived yet:
+        connection.appendPartial(bytes, lineStart, to - lineStart);
+    }// end method
+
+    /*
+        If the last command was a login/register, its password is being checked on the auth threads and the next commands
+        must wait for it. The loop doesn't wait: it stops reading this client, keeps the rest of the bytes [from, to), and
+        goes on with the others. Returns true in that case.
+     */
+    private boolean suspendIfAuthenticating(Connection connection, byte[] bytes, int from, int to) {
+        CompletableFuture<Void> authentication = connection.client.takePendingAuthentication();
+        if (authentication == null) {
+            return false;
+        }
+        connection.suspended = Arrays.copyOfRange(bytes, from, to);
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        authentication.whenComplete((result, ex) -> {
+            resumeRequests.add(connection);
+            selector.wakeup();
+        });
+        return true;
+    }// end method
+
+    // The binary clients: handles the complete frames of [from, to), and keeps the beginning of the last one.
+    private void processFrames(Connection connection, byte[] bytes, int from, int to) throws IOException {
+        if (connection.skip != 0 && from < to) {
+            if (bytes[from] == connection.skip) {
+                from++;
+            }
+            connection.skip = 0;
+        }
+
+        if (connection.partialLength > 0) {
+            // First the end of the frame split across two reads, one byte at a time until its length is known:
+            int frameEnd;
+            while ((frameEnd = frames.frameEnd(connection.partial, 0, connection.partialLength)) < 0) {
+                if (from == to) {
+                    return;
+                }
+                int lengthEnd = BinaryProtocol.varintEnd(connection.partial, 0, connection.partialLength);
+                int missing = (lengthEnd < 0) ? 1
+                        : lengthEnd + BinaryProtocol.readVarint(connection.partial, 0) - connection.partialLength;
+                int count = Math.min(missing, to - from);
+                connection.appendFrame(bytes, from, count);
+                from += count;
+            }
+            frames.parse(connection.partial, 0, frameEnd);
+            boolean stop = handleFrame(connection, bytes, from, to);
+            connection.partialLength = 0; // the handler is done with it
+            if (stop) {
+                return;
+            }
+        }
+
+        int frameEnd;
+        while (from < to && (frameEnd = frames.frameEnd(bytes, from, to)) > 0) {
+            // The whole frame is in the read buffer: handle it right there, without copying it.
+            frames.parse(bytes, from, frameEnd);
+            from = frameEnd;
+            if (handleFrame(connection, bytes, from, to)) {
+                return;
+            }
+        }
+
+        // Keep the beginning of a frame whose end hasn't arrived yet:
+        connection.appendFrame(bytes, from, to - from);
+    }// end method
+
+    // Handles the frame just parsed. Returns true if the rest [from, to) must not be handled now.
+    private boolean handleFrame(Connection connection, byte[] bytes, int from, int to) throws IOException {
+        if (connection.client.processFrame(frames, decoder)) {
+            // 'logoff' or 'deregister' in a TEXT frame, like above.
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            return true;
+        }
+        return suspendIfAuthenticating(connection, bytes, from, to);
+    }// end method
+
+    private void resumeRequested() {
+        Connection connection;
+        while ((connection = resumeRequests.poll()) != null) {
+            if (connection.closed.get() || !connection.key.isValid()) {
+                continue;
+            }
+            byte[] rest = connection.suspended;
+            connection.suspended = null;
+
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+            try {
+                processInput(connection, rest, 0, rest.length);
+            } catch (IOException ex) {
+                close(connection);
+            }
+        }
+    }// end method
+
+    private void decodeLine(Connection connection, byte[] bytes, int from, int to) {
+        if (connection.skipping) {
+            // The end of a line that was too long:
+            connection.skipping = false;
+            decoder.tooLong();
+        } else if (connection.partialLength == 0 && to - from > decoder.getMaxLineLength()) {
+            decoder.tooLong();
+        } else if (connection.partialLength == 0) {
+            // The whole line is in the read buffer: parse it right there, without copying it.
+            decoder.parse(bytes, from, to);
+        } else {
+            connection.appendPartial(bytes, from, to - from);
+            if (connection.skipping) {
+                connection.skipping = false;
+                decoder.tooLong();
+            } else {
+                decoder.parse(connection.partial, 0, connection.partialLength);
+            }
+            connection.partialLength = 0; // the decoder is done with it before the next read
+        }
+    }// end method
+
+    /*
+        Writes the outbound queue of the client, as much as the socket accepts without blocking.
+        Several queued messages go out in one gathering write(), each one straight from its (shared) array without copying it.
+     */
+    private void flush(Connection connection) throws IOException {
+        if (!connection.key.isValid()) {
+            // The socket was closed from another thread (i.e. a slow client who got disconnected):
+            close(connection);
+            return;
+        }
+        OutboundQueue queue = connection.client.getOutboundQueue();
+
+        while (true) {
+            if (connection.gatherCount == 0 && !connection.gather(queue)) {
+                break; // nothing left to write
+            }
+
+            long written = connection.channel.write(connection.gathered, connection.gatherOffset, connection.gatherCount);
+            server.getMetrics().bytesWritten(written);
+
+            if (!connection.skipWritten()) {
+                // The socket buffer is full. Continue when the channel becomes writable again:
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        if (connection.client.isCloseRequested()) {
+            close(connection);
+            return;
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+    }// end method
+
+    private void close(Connection connection) {
+        if (connection.closed.compareAndSet(false, true)) {
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "could not close " + connection.channel, ex);
+            }
+            connection.gathered = null;
+            connection.client.getOutboundQueue().clear();
+            server.removeClientProcess(connection.client);
+        }
+    }// end method
+
+    private static final class NewChannel {
+
+        final SocketChannel channel;
+        final Acceptor acceptor;
+
+        NewChannel(SocketChannel channel, Acceptor acceptor) {
+            this.channel = channel;
+            this.acceptor = acceptor;
+        }
+    }// end class
+
+    // The state the loop keeps for each client channel.
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final AtomicBoolean flushRequested = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private ClientProcessor client;
+        private SelectionKey key;
+
+        // The messages being written, gathered from the outbound queue. Allocated on the first flush.
+        private ByteBuffer[] gathered;
+        private int gatherOffset;
+        private int gatherCount;
+
+        // The beginning of a line split across two reads. Only allocated when that happens.
+        private byte[] partial;
+        private int partialLength;
+        private boolean skipping; // we are skipping the rest of a too long line
+
+        // The bytes read after a login whose password is being checked, handled when the check is done:
+        private byte[] suspended;
+
+        // The end of line byte to skip right after 'binary' (0 if none), see FrameDecoder:
+        private byte skip;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void appendPartial(byte[] bytes, int offset, int length) {
+            if (length == 0 || skipping) {
+                return;
+            }
+            if (partialLength + length > decoder.getMaxLineLength()) {
+                // Too long: forget it, and skip until the end of this line.
+                partial = null;
+                partialLength = 0;
+                skipping = true;
+                return;
+            }
+            if (partial == null || partial.length < partialLength + length) {
+                partial = Arrays.copyOf(partial == null ? new byte[0] : partial,
+                        Math.min(decoder.getMaxLineLength(), Math.max(256, 2 * (partialLength + length))));
+            }
+            System.arraycopy(bytes, offset, partial, partialLength, length);
+            partialLength += length;
+        }
+
+        // Binary clients: the beginning of a frame split across two reads (its length has been checked by the FrameDecoder).
+        void appendFrame(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            if (partial == null || partial.length < partialLength + length) {
+                partial = Arrays.copyOf(partial == null ? new byte[0] : partial,
+                        Math.min(frames.getMaxFrameLength() + 5, Math.max(256, 2 * (partialLength + length))));
+            }
+            System.arraycopy(bytes, offset, partial, partialLength, length);
+            partialLength += length;
+        }
+
+        // Takes up to 'maxGather' messages from the queue. Returns false if it was empty.
+        boolean gather(OutboundQueue queue) {
+            if (gathered == null) {
+                gathered = new ByteBuffer[maxGather];
+            }
+            gatherOffset = 0;
+            gatherCount = 0;
+
+            byte[] message;
+            while (gatherCount < maxGather && (message = queue.poll()) != null) {
+                gathered[gatherCount++] = ByteBuffer.wrap(message); // only a view on the shared array
+            }
+            return gatherCount > 0;
+        }
+
+        // Forgets the messages written completely. Returns false if some bytes are still waiting for the socket.
+        boolean skipWritten() {
+            while (gatherCount > 0 && !gathered[gatherOffset].hasRemaining()) {
+                gathered[gatherOffset++] = null;
+                gatherCount--;
+            }
+            return gatherCount == 0;
+        }
+
+        // Called (from any thread) when something was queued for this client:
+        void requestFlush() {
+            if (flushRequested.compareAndSet(false, true)) {
+                flushRequests.add(this);
+                if (Thread.currentThread() != NioEventLoop.this && flushDelay == 0) {
+                    selector.wakeup();
+                }
+            }
+        }
+    }// end inner class
+
+}// end class
@@ -0,0 +1,291 @@
+package my_server;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The direct messages sent to registered users while they were offline, waiting for their next login.
+ *
+ * Every user has a mailbox file (chat-data/mailbox/fares.box) of records appended one after the other:
+ *
+ * <pre>
+ *     [long time millis][int length][the bytes of the line, exactly as it would have been sent]
+ * </pre>
+ *
+ * The file is the truth; the mailboxes used lately are also kept in a small LRU cache (chat.mailbox.cache users), so a
+ * user who receives several messages, or logs in right after, doesn't make us read the file again. A mailbox holds at
+ * most chat.mailbox.max messages (the newer ones are refused, and their senders told), and the messages older than
+ * chat.mailbox.max.age hours are forgotten, so an account nobody uses anymore can't fill the disk or the heap.
+ *
+ * Like the TopicLog, everything runs on one 'mailbox' thread, and the client threads never wait for the disk.
+ *
+ * @author Fares Abu Ali
+ */
+public class OfflineMailbox {
+
+    private static final Logger LOG = Logger.getLogger(OfflineMailbox.class.getName());
+
+    private static final int HEADER_SIZE = 8 + 4; // time + length
+    private static final long SWEEP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private final Path directory;
+    private final int maxMessages;
+    private final long maxAgeMillis;
+    private final BackgroundWorker worker;
+
+    private final AtomicLong storedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong(); // the mailbox was full
+
+    // Only used by the mailbox thread. In access order, the least recently used mailbox is evicted first.
+    private final LinkedHashMap<String, ArrayDeque<Letter>> cache;
+
+    public OfflineMailbox(ServerConfig config) {
+        this.directory = Path.of(config.getDataDirectory(), "mailbox");
+        this.maxMessages = config.getMailboxMaxMessages();
+        this.maxAgeMillis = TimeUnit.HOURS.toMillis(config.getMailboxMaxAgeHours());
+
+        int cacheSize = config.getMailboxCacheSize();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<Letter>> eldest) {
+                return size() > cacheSize; // it is on disk anyway
+            }
+        };
+        this.worker = new BackgroundWorker("mailbox", 10_000, SWEEP_INTERVAL, this::deleteExpired);
+    }// end constructor
+
+    /*
+        Keeps a direct message for 'recipient' (who must be a registered user).
+        'isOnline' is asked again on the mailbox thread after the message is stored: if the recipient has logged in in the
+        meantime, the login's delivery may already have run, so the message is delivered right away with 'deliverTo'.
+        'refused' is given the reason on the mailbox thread instead if the message couldn't be kept (a full mailbox, or
+        the disk), so the sender can be told.
+     */
+    public void store(String recipient, byte[] line, Predicate<String> isOnline, Consumer<String> deliverTo, Consumer<String> refused) {
+        long time = System.currentTimeMillis();
+        worker.submit(() -> {
+            String user = key(recipient);
+            try {
+                ArrayDeque<Letter> letters = open(user);
+                if (letters.size() >= maxMessages) {
+                    refusedCount.incrementAndGet();
+                    refused.accept("his mailbox is full");
+                    return;
+                }
+
+                Letter letter = new Letter(time, line);
+                letters.addLast(letter);
+                Files.createDirectories(directory);
+                try (FileChannel file = FileChannel.open(file(user), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+                    write(file, letter);
+                }
+                storedCount.incrementAndGet();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "could not store a message for " + recipient, ex);
+                refused.accept("it could not be written");
+                return;
+            }
+
+            if (isOnline.test(recipient)) {
+                deliverTo.accept(recipient);
+            }
+        });
+    }// end method
+
+    /*
+        Called once the user has logged in (and can be found by the senders): gives all his waiting messages to 'reply' as one
+        array, so they go out in one write, and empties the mailbox. Nothing is given if the mailbox is empty.
+     */
+    public void deliver(String login, Consumer<byte[]> reply) {
+        worker.submit(() -> {
+            String user = key(login);
+            try {
+                ArrayDeque<Letter> letters = open(user);
+                if (letters.isEmpty()) {
+                    return;
+                }
+
+                int size = 0;
+                for (Letter letter : letters) {
+                    size += letter.line.length;
+                }
+                byte[] lines = new byte[size];
+                int position = 0;
+                for (Letter letter : letters) {
+                    System.arraycopy(letter.line, 0, lines, position, letter.line.length);
+                    position += letter.line.length;
+                }
+
+                deliveredCount.addAndGet(letters.size());
+                letters.clear();
+                Files.deleteIfExists(file(user));
+                reply.accept(lines);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "could not deliver the messages of " + login, ex);
+            }
+        });
+    }// end method
+
+    // The user has deregistered: his messages are not kept.
+    public void discard(String login) {
+        worker.submit(() -> {
+            String user = key(login);
+            cache.remove(user);
+            try {
+                Files.deleteIfExists(file(user));
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "could not delete the mailbox of " + login, ex);
+            }
+        });
+    }// end method
+
+    private static String key(String login) {
+        return login.toLowerCase(Locale.ROOT); // like the sessions and the usersTable of MyServer
+    }
+
+    private Path file(String user) {
+        return directory.resolve(URLEncoder.encode(user, StandardCharsets.UTF_8) + ".box");
+    }
+
+    // The mailbox of the user from the cache, or else from its file. The expired messages are removed.
+    private ArrayDeque<Letter> open(String user) throws IOException {
+        ArrayDeque<Letter> letters = cache.get(user);
+        if (letters == null) {
+            letters = read(file(user));
+            cache.put(user, letters);
+        }
+
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+        boolean expired = false;
+        while (!letters.isEmpty() && letters.peekFirst().time < oldestAllowed) {
+            letters.pollFirst();
+            expired = true;
+        }
+        if (expired) {
+            rewrite(user, letters);
+        }
+        return letters;
+    }// end method
+
+    private ArrayDeque<Letter> read(Path file) throws IOException {
+        ArrayDeque<Letter> letters = new ArrayDeque<>();
+        if (!Files.exists(file)) {
+            return letters;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (buffer.remaining() >= HEADER_SIZE) {
+            long time = buffer.getLong();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break; // the server died in the middle of this record
+            }
+            byte[] line = new byte[length];
+            buffer.get(line);
+            letters.addLast(new Letter(time, line));
+        }
+        return letters;
+    }// end method
+
+    private void rewrite(String user, ArrayDeque<Letter> letters) throws IOException {
+        if (letters.isEmpty()) {
+            Files.deleteIfExists(file(user));
+            return;
+        }
+        try (FileChannel file = FileChannel.open(file(user), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Letter letter : letters) {
+                write(file, letter);
+            }
+        }
+    }// end method
+
+    private static void write(FileChannel file, Letter letter) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + letter.line.length);
+        record.putLong(letter.time).putInt(letter.line.length).put(letter.line).flip();
+        while (record.hasRemaining()) {
+            file.write(record);
+        }
+    }// end method
+
+    /*
+        Runs every hour: the files not written for longer than the maximum age only have expired messages (they are appended in
+        order), so they are deleted without reading them.
+     */
+    private void deleteExpired() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.box")) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < oldestAllowed) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "could not delete the expired mailboxes", ex);
+        }
+
+        Iterator<ArrayDeque<Letter>> cached = cache.values().iterator();
+        while (cached.hasNext()) {
+            ArrayDeque<Letter> letters = cached.next();
+            if (letters.isEmpty() || letters.peekLast().time < oldestAllowed) {
+                cached.remove();
+            }
+        }
+    }// end method
+
+    // Waits for the messages stored so far to be written (see BackgroundWorker.awaitIdle()).
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        return worker.awaitIdle(timeoutMillis);
+    }
+
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    // The messages lost because a mailbox was full, or the mailbox thread was behind:
+    public long getRefusedCount() {
+        return refusedCount.get() + worker.getRefusedCount();
+    }
+
+    // One waiting message.
+    private static class Letter {
+
+        private final long time;
+        private final byte[] line;
+
+        Letter(long time, byte[] line) {
+            this.time = time;
+            this.line = line;
+        }// end constructor
+
+    }// end class
+
+}// end class
@@ -0,0 +1,309 @@
+package my_server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue of the messages waiting to be written to one client.
+ *
+ * The senders only put their messages here and return; a writer drains it to the socket. So a client who stopped
+ * reading makes its own queue fill up, instead of blocking everybody who sends him a message. What happens when the
+ * queue is full is decided by the OverflowPolicy.
+ *
+ * The messages wait in priority lanes (see Lane), each one in the order it was queued. The CONTROL lane is always
+ * written first. The other lanes take turns with weights (chat.lane.weights, 8 direct : 4 topic : 1 bulk by default):
+ * a broadcast storm can't delay the direct messages of a client behind thousands of its lines, and it still gets
+ * its share, so it is never starved either. The time every message waited is recorded per lane (see ServerMetrics).
+ * The order is kept within a lane only: a direct message may be written before a topic message queued earlier.
+ *
+ * @author Fares Abu Ali
+ */
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, // forget the oldest queued message (of the lowest priority) to make room for the new one
+        DROP_NEWEST, // refuse the new message
+        DISCONNECT // refuse the new message, and the slow client should be disconnected
+    }
+
+    public enum Lane {
+        CONTROL, // the replies to the client's own commands, the heartbeats, the NAME frames: always written first
+        DIRECT, // the direct messages (and the offline ones)
+        TOPIC, // the topic messages and their history
+        BULK // the broadcasts and the presence lines
+    }
+
+    private static final Lane[] LANES = Lane.values();
+
+    // The lanes after CONTROL take turns with these weights: DIRECT, TOPIC, BULK.
+    public static final int[] DEFAULT_WEIGHTS = {8, 4, 1};
+
+    // One lane: a growable ring of the messages and the System.nanoTime() they were queued at.
+    private static final class Ring {
+
+        byte[][] messages = new byte[0][];
+        long[] times = new long[0];
+        int head;
+        int size;
+
+        void add(byte[] message, long time) {
+            if (size == messages.length) {
+                grow();
+            }
+            int tail = (head + size) & (messages.length - 1);
+            messages[tail] = message;
+            times[tail] = time;
+            size++;
+        }
+
+        long headTime() {
+            return times[head];
+        }
+
+        byte[] poll() {
+            byte[] message = messages[head];
+            messages[head] = null;
+            head = (head + 1) & (messages.length - 1);
+            size--;
+            return message;
+        }
+
+        // Allocated on the first message: most lanes of most clients stay empty.
+        private void grow() {
+            int length = Math.max(4, messages.length * 2);
+            byte[][] grownMessages = new byte[length][];
+            long[] grownTimes = new long[length];
+            for (int i = 0; i < size; i++) {
+                grownMessages[i] = messages[(head + i) & (messages.length - 1)];
+                grownTimes[i] = times[(head + i) & (messages.length - 1)];
+            }
+            messages = grownMessages;
+            times = grownTimes;
+            head = 0;
+        }
+
+        void clear() {
+            messages = new byte[0][];
+            times = new long[0];
+            head = 0;
+            size = 0;
+        }
+    }// end class
+
+    private final Ring[] lanes = new Ring[LANES.length];
+    private final int[] weights;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    // Not 'synchronized' on purpose: a virtual thread waiting for a monitor would pin its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // All the lanes (with the lock):
+    private int size;
+
+    // The weighted lane whose turn it is, and how many messages it may still send in this turn (with the lock):
+    private int turn = Lane.DIRECT.ordinal();
+    private int credit = 0;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    // Where the queue depths and the dropped messages are counted for the whole server (may be null):
+    private final ServerMetrics metrics;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null);
+    }// end constructor
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, ServerMetrics metrics) {
+        this(capacity, policy, DEFAULT_WEIGHTS, metrics);
+    }// end constructor
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, int[] weights, ServerMetrics metrics) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("the capacity of the outbound queue must be at least 1");
+        }
+        if (weights.length != LANES.length - 1) {
+            throw new IllegalArgumentException("expected a weight for each lane but CONTROL");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.weights = weights;
+        this.metrics = metrics;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Ring();
+        }
+    }// end constructor
+
+    // A reply or a control line.
+    public boolean offer(byte[] message) {
+        return offer(message, Lane.CONTROL);
+    }
+
+    /*
+        Returns false if the message was refused because the queue is full.
+        (With DROP_OLDEST the new message is accepted if a message of its lane or of a lower one can be dropped instead.)
+     */
+    public boolean offer(byte[] message, Lane lane) {
+        boolean dropped = false;
+        int depth;
+        long now = System.nanoTime();
+
+        lock.lock();
+        try {
+            if (size >= capacity) {
+                droppedCount.incrementAndGet();
+                dropped = true;
+
+                int victim = (policy == OverflowPolicy.DROP_OLDEST) ? lowestLaneFrom(lane.ordinal()) : -1;
+                if (victim < 0) {
+                    depth = -1; // refused
+                } else {
+                    lanes[victim].poll();
+                    lanes[lane.ordinal()].add(message, now);
+                    depth = size;
+                }
+            } else {
+                lanes[lane.ordinal()].add(message, now);
+                depth = ++size;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Counted after unlocking, so the writer doesn't wait for the metrics:
+        if (metrics != null) {
+            if (dropped) {
+                metrics.messageDropped();
+            }
+            if (depth > 0) {
+                metrics.messageQueued(depth);
+            }
+        }
+        return depth > 0;
+    }// end method
+
+    // With the lock: the lowest priority lane at or below 'from' that has a message, or -1.
+    private int lowestLaneFrom(int from) {
+        for (int i = lanes.length - 1; i >= from; i--) {
+            if (lanes[i].size > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }// end method
+
+    /*
+        Queues a message that must be written after everything already queued, whatever their lanes (i.e. the last text
+        line before a switch to the binary protocol, or the goodbye of a stopping server): what is queued is moved to the
+        CONTROL lane first. It is never refused.
+     */
+    public void offerLast(byte[] message) {
+        int depth;
+        lock.lock();
+        try {
+            Ring control = lanes[Lane.CONTROL.ordinal()];
+            for (int i = Lane.CONTROL.ordinal() + 1; i < lanes.length; i++) {
+                while (lanes[i].size > 0) {
+                    long time = lanes[i].headTime();
+                    control.add(lanes[i].poll(), time);
+                }
+            }
+            control.add(message, System.nanoTime());
+            depth = ++size;
+        } finally {
+            lock.unlock();
+        }
+        if (metrics != null) {
+            metrics.messageQueued(depth);
+        }
+    }// end method
+
+    // Returns null if there is nothing to write.
+    public byte[] poll() {
+        byte[] message;
+        int lane;
+        long waited;
+
+        lock.lock();
+        try {
+            lane = nextLane();
+            if (lane < 0) {
+                return null;
+            }
+            waited = System.nanoTime() - lanes[lane].headTime();
+            message = lanes[lane].poll();
+            size--;
+        } finally {
+            lock.unlock();
+        }
+
+        if (metrics != null) {
+            metrics.messageDequeued(LANES[lane], waited);
+        }
+        return message;
+    }// end method
+
+    // With the lock: the lane of the next message to write, or -1 if there is none.
+    private int nextLane() {
+        if (size == 0) {
+            return -1;
+        }
+        if (lanes[Lane.CONTROL.ordinal()].size > 0) {
+            return Lane.CONTROL.ordinal();
+        }
+        // There is a message in one of the weighted lanes: at most a whole round to find it.
+        for (int tries = 0; tries <= weights.length; tries++) {
+            if (credit > 0 && lanes[turn].size > 0) {
+                credit--;
+                return turn;
+            }
+            turn = (turn == lanes.length - 1) ? Lane.DIRECT.ordinal() : turn + 1;
+            credit = weights[turn - 1];
+        }
+        return -1;
+    }// end method
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    public int size(Lane lane) {
+        lock.lock();
+        try {
+            return lanes[lane.ordinal()].size;
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    public void clear() {
+        lock.lock();
+        try {
+            for (Ring ring : lanes) {
+                ring.clear();
+            }
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    public OverflowPolicy getPolicy() {
+        return this.policy;
+    }
+
+    // How many messages were not delivered to this client because its queue was full:
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+}// end class
@@ -0,0 +1,74 @@
+package my_server;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * A salted PBKDF2 hash of a password. The passwords themselves are never stored.
+ *
+ * PBKDF2 is slow on purpose (chat.auth.iterations rounds), so a stolen users file can't be brute forced quickly. That is
+ * also why the server checks the passwords on the Authenticator's own threads, and not on the threads of the clients.
+ *
+ * It is stored as one token: iterations:salt:hash (the salt and the hash in Base64).
+ *
+ * @author Fares Abu Ali
+ */
+public class PasswordHash {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    private PasswordHash(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }// end constructor
+
+    public static PasswordHash create(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new PasswordHash(iterations, salt, pbkdf2(password, salt, iterations));
+    }// end method
+
+    public boolean matches(String password) {
+        // Compares all the bytes whatever they are, so the time doesn't tell how much of the hash was right:
+        return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations));
+    }// end method
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ALGORITHM + " is not available", ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }// end method
+
+    public String encode() {
+        Base64.Encoder base64 = Base64.getEncoder();
+        return iterations + ":" + base64.encodeToString(salt) + ":" + base64.encodeToString(hash);
+    }// end method
+
+    public static PasswordHash parse(String encoded) {
+        String[] parts = encoded.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("not a password hash: " + encoded);
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        return new PasswordHash(Integer.parseInt(parts[0]), base64.decode(parts[1]), base64.decode(parts[2]));
+    }// end method
+
+}// end class
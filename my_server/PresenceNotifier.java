@@ -0,0 +1,192 @@
+package my_server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import my_client.ClientProcessor;
+
+/**
+ * Tells the online users who has come online, gone offline or deregistered.
+ *
+ * Writing "online X" to every client on every login costs N writes per login, so N*N writes when N users reconnect
+ * after a restart. Instead the changes are collected for chat.presence.delay milliseconds, only the last change of
+ * every user is kept (an "online X" followed by "offline X" is just "offline X"), and then the whole batch is encoded
+ * once and queued once to every client who wants the presence events. So a client gets at most one presence write per
+ * period, however many users come and go.
+ *
+ * The lines are the same as before ("online X", "offline X", "deregistered X"), only grouped. With chat.presence.delay=0
+ * every change is sent right away, like before.
+ *
+ * @author Fares Abu Ali
+ */
+public class PresenceNotifier {
+
+    private final MyServer server;
+    private final int delayMillis;
+    private final ScheduledExecutorService scheduler; // null if there is no delay
+
+    // The last change of every user since the last batch, by login in lower case, in the order they happened:
+    private final LinkedHashMap<String, Change> pending = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean scheduled; // a batch is due (with the lock)
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    private static final class Change {
+
+        final String key; // the login in lower case
+        final byte[] line;
+
+        Change(String key, byte[] line) {
+            this.key = key;
+            this.line = line;
+        }
+    }// end class
+
+    public PresenceNotifier(MyServer server, ServerConfig config) {
+        this.server = server;
+        this.delayMillis = config.getPresenceDelayMillis();
+        if (delayMillis > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "presence");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.scheduler = null;
+        }
+    }// end constructor
+
+    public void online(String login) {
+        publish(login, "online ");
+    }
+
+    public void offline(String login) {
+        publish(login, "offline ");
+    }
+
+    public void deregistered(String login) {
+        publish(login, "deregistered ");
+    }
+
+    private void publish(String login, String event) {
+        String key = login.toLowerCase(Locale.ROOT);
+        Change change = new Change(key, (event + login + "\n\r").getBytes(StandardCharsets.UTF_8));
+        changes.increment();
+
+        if (scheduler == null) {
+            send(List.of(change));
+            return;
+        }
+
+        lock.lock();
+        try {
+            pending.remove(key); // so the newest change takes its place at the end
+            pending.put(key, change);
+            if (!scheduled) {
+                scheduled = true;
+                scheduler.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    private void flush() {
+        List<Change> batch;
+        lock.lock();
+        try {
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+            scheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        send(batch);
+    }// end method
+
+    private void send(List<Change> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.increment();
+        SharedLines lines = new SharedLines(concat(batch, null)); // encoded once for all the binary clients
+        Set<String> logins = new HashSet<>();
+        for (Change change : batch) {
+            logins.add(change.key);
+        }
+
+        int recipients = 0;
+        for (ClientProcessor client : server.getOnlineClients()) {
+            if (!client.isPresenceEnabled()) {
+                continue;
+            }
+            // Nobody needs to be notified about himself (only the few users in the batch get their own copy):
+            String key = client.getLogin().toLowerCase(Locale.ROOT);
+            if (logins.contains(key)) {
+                byte[] others = concat(batch, key);
+                if (others.length > 0) {
+                    client.send(others, OutboundQueue.Lane.BULK);
+                }
+            } else {
+                client.send(lines, OutboundQueue.Lane.BULK);
+            }
+            recipients++;
+        }
+        server.getMetrics().fanout(recipients);
+    }// end method
+
+    // The lines of the batch one after the other, without the one about 'skip' (a login in lower case, or null):
+    private static byte[] concat(List<Change> batch, String skip) {
+        if (batch.size() == 1 && skip == null) {
+            return batch.get(0).line;
+        }
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (Change change : batch) {
+            if (!change.key.equals(skip)) {
+                lines.writeBytes(change.line);
+            }
+        }
+        return lines.toByteArray();
+    }// end method
+
+    /*
+        The users online right now (here and on the other nodes of the cluster), except 'self', as one message:
+        the roster a client gets once when he logs in, instead of one write per user.
+     */
+    public byte[] roster(ClientProcessor self) {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (ClientProcessor client : server.getOnlineClients()) {
+            if (client != self) {
+                lines.writeBytes(("online " + client.getLogin() + "\n\r").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            for (String remoteLogin : cluster.getRemoteLogins()) {
+                lines.writeBytes(("online " + remoteLogin + "\n\r").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return lines.toByteArray();
+    }// end method
+
+    public long getChangesCount() {
+        return changes.sum();
+    }
+
+    public long getBatchesCount() {
+        return batches.sum();
+    }
+
+}// end class
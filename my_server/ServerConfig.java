@@ -0,0 +1,430 @@
+package my_server;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The startup options of the server. ServerStarter builds it from the program arguments:
+ *
+ * <pre>
+ *     ServerStarter                 (one ClientProcessor thread per client, the original mode)
+ *     ServerStarter thread
+ *     ServerStarter virtual         (one virtual thread per client, needs Java 21)
+ *     ServerStarter nio [loops]     (a small fixed pool of NIO event-loop threads)
+ * </pre>
+ *
+ * The tuning options are read from system properties (i.e. java -Dchat.outbound.capacity=512 ...):
+ *
+ * <pre>
+ *     chat.outbound.capacity    how many messages may wait to be written to one client (default 1024)
+ *     chat.outbound.policy      what to do when that queue is full: drop-oldest (default), drop-newest or disconnect
+ *     chat.lane.weights         how many messages of the direct, topic and bulk lanes of an outbound queue are written in
+ *                               turn (default 8,4,1; the control lane always goes first, see OutboundQueue)
+ *     chat.flush.delay          milliseconds a writer may wait for more messages before it writes (default 0)
+ *     chat.flush.batch          how many messages at most are written before one flush (default 64)
+ *     chat.write.buffer         size in bytes of the buffer the messages are coalesced in (default 8192)
+ *     chat.line.max             the longest command line (in bytes) a client may send (default 4096)
+ *     chat.acceptors            the threads accepting the connections (default 1). On Linux each one listens on its own
+ *                               socket with SO_REUSEPORT, elsewhere they share one (see Acceptor)
+ *     chat.accept.backlog       how many connections may wait to be accepted, per listening socket (default 1024; the OS
+ *                               may lower it, i.e. to net.core.somaxconn on Linux)
+ *     chat.drain.timeout        seconds a stopping server gives the writers to empty the outbound queues (default 10)
+ *     chat.warm.restart         a stopping server writes the topics and the undelivered lines of the logged in users to
+ *                               chat.data.dir/sessions.snapshot, and gives them back when they login again (default true)
+ *     chat.tcp.nodelay          TCP_NODELAY on the client sockets (default true: we coalesce the writes ourselves)
+ *     chat.admins               the users allowed to run the 'stats' command, separated by commas (default none). It is
+ *                               the only admin command: the server is stopped (and drained) with a SIGTERM, not by a client
+ *     chat.test.users           registers the test users Fares, Motaz and Mohammad, whose passwords are in the sources, at
+ *                               startup (default false: for development only)
+ *     chat.log.level            the level of the server's log (default INFO, FINE prints every login/join/register..)
+ *     chat.data.dir             where the server keeps its files (default chat-data, chat-data/<node id> in a cluster)
+ *     chat.history              keep the messages of the topics on disk for 'history #topic n' (default true)
+ *     chat.history.segment      the size in bytes of one memory-mapped segment of a topic log (default 1 MB)
+ *     chat.history.max.bytes    the oldest segments of a topic are deleted above this size (default 64 MB)
+ *     chat.history.max.age      ... and when they are older than this many hours (default 168, one week)
+ *     chat.history.max.topics   at most this many topics have a history, the messages of the others aren't kept (default 1000)
+ *     chat.history.max.segments at most this many segments on disk, for all the topics (default 4096)
+ *     chat.mailbox              keep the direct messages sent to offline users until they login (default true)
+ *     chat.mailbox.max          how many messages one offline user can receive at most (default 200)
+ *     chat.mailbox.max.age      hours after which a waiting message is forgotten (default 72)
+ *     chat.mailbox.cache        how many mailboxes are also kept in memory (default 1000)
+ *     chat.users.store          where the users are kept: file (default, in chat.data.dir) or memory
+ *     chat.users.snapshot.every the users file is rewritten after this many registrations/deregistrations (default 1000)
+ *     chat.auth.iterations      the PBKDF2 rounds of the password hashes (default 100000)
+ *     chat.auth.threads         the threads that check the passwords (default: half of the cores)
+ *     chat.auth.queue           how many logins may wait for those threads before the next ones are refused (default 1000)
+ *     chat.auth.cache           how many successful logins are remembered, so they are not hashed again (default 1000)
+ *     chat.cluster.port         the port the other nodes of the cluster connect to (default -1: no cluster)
+ *     chat.cluster.node         the id of this node in the cluster (default node-<cluster port>)
+ *     chat.cluster.peers        the other nodes: id@host:port,id@host:port.. (see ClusterNode)
+ *     chat.cluster.bind         the address chat.cluster.port listens on (default 127.0.0.1: set it to the address the
+ *                               other nodes reach this one at)
+ *     chat.cluster.secret       the secret all the nodes share, a node must prove it knows it to connect (required)
+ *     chat.presence.delay       milliseconds the online/offline changes are collected before they are sent together
+ *                               (default 200, 0 sends every change right away; see PresenceNotifier)
+ *     chat.fanout.threshold     a message with at least this many recipients is delivered by the fan-out shards, not by the
+ *                               thread of its sender (default 1000, 0: never; see FanoutShards)
+ *     chat.fanout.shards        the threads of those shards (default: one per core)
+ *     chat.binary.symbols       how many user and topic names the binary protocol gives an id to (default 1000000)
+ *     chat.login.timeout        seconds a connection may stay without logging in before it is closed (default 60, 0: forever)
+ *     chat.idle.timeout         seconds a client may stay without sending anything before he is logged off (default 0: forever)
+ *     chat.heartbeat            seconds of silence of a client after which the server sends him "ping" (default 0: never).
+ *                               If nothing is read from him within twice that time after the ping, he is logged off: a
+ *                               peer gone without closing the connection is found even if nothing is written to him.
+ *                               Off by default, the clients that don't answer "pong" would be logged off when idle.
+ * </pre>
+ *
+ * @author Fares Abu Ali
+ */
+public class ServerConfig {
+
+    public enum Mode {
+        THREAD_PER_CLIENT, // every accepted socket gets its own ClientProcessor thread
+        VIRTUAL_THREADS, // same blocking code, but every ClientProcessor runs on a (cheap) virtual thread
+        NIO // non-blocking channels multiplexed over a few event-loop threads (see NioEventLoop)
+    }
+
+    private Mode mode = Mode.THREAD_PER_CLIENT;
+
+    // Number of event-loop threads used in NIO mode. One per core is enough since the loops never block.
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    private int outboundCapacity = Integer.getInteger("chat.outbound.capacity", 1024);
+    private OutboundQueue.OverflowPolicy overflowPolicy = parsePolicy(System.getProperty("chat.outbound.policy", "drop-oldest"));
+
+    private int[] laneWeights = parseWeights(System.getProperty("chat.lane.weights", "8,4,1"));
+    private int flushDelayMillis = Integer.getInteger("chat.flush.delay", 0);
+    private int flushBatchSize = Integer.getInteger("chat.flush.batch", 64);
+    private int writeBufferSize = Integer.getInteger("chat.write.buffer", 8192);
+    private int maxLineLength = Integer.getInteger("chat.line.max", 4096);
+    private int acceptors = Integer.getInteger("chat.acceptors", 1);
+    private int acceptBacklog = Integer.getInteger("chat.accept.backlog", 1024);
+    private int drainTimeoutSeconds = Integer.getInteger("chat.drain.timeout", 10);
+    private boolean warmRestart = Boolean.parseBoolean(System.getProperty("chat.warm.restart", "true"));
+    private boolean tcpNoDelay = Boolean.parseBoolean(System.getProperty("chat.tcp.nodelay", "true"));
+    private Set<String> admins = parseUsers(System.getProperty("chat.admins", ""));
+    private boolean testUsers = Boolean.parseBoolean(System.getProperty("chat.test.users", "false"));
+
+    // (before chat.data.dir: the nodes of a cluster on one machine must not share their files)
+    private int clusterPort = Integer.getInteger("chat.cluster.port", -1);
+    private String clusterNode = System.getProperty("chat.cluster.node", "node-" + clusterPort);
+    private String clusterPeers = System.getProperty("chat.cluster.peers", "");
+    private String clusterBindAddress = System.getProperty("chat.cluster.bind", "127.0.0.1");
+    private String clusterSecret = System.getProperty("chat.cluster.secret", "");
+
+    private String dataDirectory = System.getProperty("chat.data.dir", (clusterPort >= 0) ? "chat-data/" + clusterNode : "chat-data");
+    private boolean historyEnabled = Boolean.parseBoolean(System.getProperty("chat.history", "true"));
+    private int historySegmentSize = Integer.getInteger("chat.history.segment", 1024 * 1024);
+    private long historyMaxBytes = Long.getLong("chat.history.max.bytes", 64L * 1024 * 1024);
+    private int historyMaxAgeHours = Integer.getInteger("chat.history.max.age", 168);
+    private int historyMaxTopics = Integer.getInteger("chat.history.max.topics", 1000);
+    private int historyMaxSegments = Integer.getInteger("chat.history.max.segments", 4096);
+
+    private boolean mailboxEnabled = Boolean.parseBoolean(System.getProperty("chat.mailbox", "true"));
+    private int mailboxMaxMessages = Integer.getInteger("chat.mailbox.max", 200);
+    private int mailboxMaxAgeHours = Integer.getInteger("chat.mailbox.max.age", 72);
+    private int mailboxCacheSize = Integer.getInteger("chat.mailbox.cache", 1000);
+
+    private String usersStore = System.getProperty("chat.users.store", "file");
+    private int usersSnapshotEvery = Integer.getInteger("chat.users.snapshot.every", 1000);
+    private int authIterations = Integer.getInteger("chat.auth.iterations", 100_000);
+    private int authThreads = Integer.getInteger("chat.auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private int authQueueCapacity = Integer.getInteger("chat.auth.queue", 1000);
+    private int authCacheSize = Integer.getInteger("chat.auth.cache", 1000);
+
+    private int presenceDelayMillis = Integer.getInteger("chat.presence.delay", 200);
+    private int fanoutThreshold = Integer.getInteger("chat.fanout.threshold", 1000);
+    private int fanoutShards = Integer.getInteger("chat.fanout.shards", Runtime.getRuntime().availableProcessors());
+    private int binarySymbols = Integer.getInteger("chat.binary.symbols", 1_000_000);
+
+    private int loginTimeoutSeconds = Integer.getInteger("chat.login.timeout", 60);
+    private int idleTimeoutSeconds = Integer.getInteger("chat.idle.timeout", 0);
+    private int heartbeatSeconds = Integer.getInteger("chat.heartbeat", 0);
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        if (args.length > 0) {
+            switch (args[0].toLowerCase()) {
+                case "thread":
+                    config.mode = Mode.THREAD_PER_CLIENT;
+                    break;
+
+                case "virtual":
+                    config.mode = Mode.VIRTUAL_THREADS;
+                    break;
+
+                case "nio":
+                    config.mode = Mode.NIO;
+                    if (args.length > 1) {
+                        config.eventLoops = Integer.parseInt(args[1]);
+                    }
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("unknown server mode: " + args[0] + " (expected: thread, virtual, nio)");
+            }
+        }
+
+        if (config.eventLoops < 1) {
+            throw new IllegalArgumentException("the number of event loops must be at least 1");
+        }
+        if (config.acceptors < 1 || config.acceptBacklog < 1) {
+            throw new IllegalArgumentException("chat.acceptors and chat.accept.backlog must be at least 1");
+        }
+        if (config.drainTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("chat.drain.timeout must be positive");
+        }
+        if (config.outboundCapacity < 1) {
+            throw new IllegalArgumentException("chat.outbound.capacity must be at least 1");
+        }
+        if (config.maxLineLength < 16) {
+            throw new IllegalArgumentException("chat.line.max must be at least 16");
+        }
+        if (config.flushDelayMillis < 0 || config.flushBatchSize < 1 || config.writeBufferSize < 1) {
+            throw new IllegalArgumentException("chat.flush.delay must be positive, chat.flush.batch and chat.write.buffer at least 1");
+        }
+        if (config.authIterations < 1 || config.authThreads < 1 || config.authQueueCapacity < 1 || config.usersSnapshotEvery < 1) {
+            throw new IllegalArgumentException("chat.auth.iterations, chat.auth.threads, chat.auth.queue and chat.users.snapshot.every must be at least 1");
+        }
+        if (config.loginTimeoutSeconds < 0 || config.idleTimeoutSeconds < 0 || config.heartbeatSeconds < 0) {
+            throw new IllegalArgumentException("chat.login.timeout, chat.idle.timeout and chat.heartbeat must be positive");
+        }
+        if (config.fanoutThreshold < 0 || config.fanoutShards < 1) {
+            throw new IllegalArgumentException("chat.fanout.threshold must be positive, chat.fanout.shards at least 1");
+        }
+        if (config.presenceDelayMillis < 0) {
+            throw new IllegalArgumentException("chat.presence.delay must be 0 or more");
+        }
+        if (config.historySegmentSize < 2 * config.maxLineLength) {
+            // so any message of a topic fits in a segment
+            throw new IllegalArgumentException("chat.history.segment must be at least twice chat.line.max");
+        }
+        if (config.isClustered() && config.clusterSecret.isEmpty()) {
+            throw new IllegalArgumentException("chat.cluster.secret is required with chat.cluster.port");
+        }
+        if (config.historyMaxTopics < 1 || config.historyMaxSegments < 1) {
+            throw new IllegalArgumentException("chat.history.max.topics and chat.history.max.segments must be at least 1");
+        }
+        return config;
+    }// end method
+
+    private static OutboundQueue.OverflowPolicy parsePolicy(String value) {
+        // drop-oldest --> DROP_OLDEST
+        return OutboundQueue.OverflowPolicy.valueOf(value.trim().replace('-', '_').toUpperCase());
+    }// end method
+
+    private static int[] parseWeights(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != OutboundQueue.DEFAULT_WEIGHTS.length) {
+            throw new IllegalArgumentException("chat.lane.weights needs " + OutboundQueue.DEFAULT_WEIGHTS.length + " weights: direct,topic,bulk");
+        }
+        int[] weights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("chat.lane.weights must be at least 1");
+            }
+        }
+        return weights;
+    }// end method
+
+    // The logins in lower case, like the sessions of MyServer.
+    private static Set<String> parseUsers(String value) {
+        Set<String> users = new HashSet<>();
+        for (String user : value.split(",")) {
+            if (!user.trim().isEmpty()) {
+                users.add(user.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return users;
+    }// end method
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    public int getEventLoops() {
+        return this.eventLoops;
+    }
+
+    public int getAcceptors() {
+        return this.acceptors;
+    }
+
+    public int getAcceptBacklog() {
+        return this.acceptBacklog;
+    }
+
+    public long getDrainTimeoutMillis() {
+        return this.drainTimeoutSeconds * 1000L;
+    }
+
+    public boolean isWarmRestart() {
+        return this.warmRestart;
+    }
+
+    public int getOutboundCapacity() {
+        return this.outboundCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    public int[] getLaneWeights() {
+        return this.laneWeights;
+    }
+
+    public int getFlushDelayMillis() {
+        return this.flushDelayMillis;
+    }
+
+    public int getFlushBatchSize() {
+        return this.flushBatchSize;
+    }
+
+    public int getWriteBufferSize() {
+        return this.writeBufferSize;
+    }
+
+    public int getMaxLineLength() {
+        return this.maxLineLength;
+    }
+
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    public String getDataDirectory() {
+        return this.dataDirectory;
+    }
+
+    public boolean isHistoryEnabled() {
+        return this.historyEnabled;
+    }
+
+    public int getHistorySegmentSize() {
+        return this.historySegmentSize;
+    }
+
+    public long getHistoryMaxBytes() {
+        return this.historyMaxBytes;
+    }
+
+    public int getHistoryMaxAgeHours() {
+        return this.historyMaxAgeHours;
+    }
+
+    public int getHistoryMaxTopics() {
+        return this.historyMaxTopics;
+    }
+
+    public int getHistoryMaxSegments() {
+        return this.historyMaxSegments;
+    }
+
+    public boolean isMailboxEnabled() {
+        return this.mailboxEnabled;
+    }
+
+    public int getMailboxMaxMessages() {
+        return this.mailboxMaxMessages;
+    }
+
+    public int getMailboxMaxAgeHours() {
+        return this.mailboxMaxAgeHours;
+    }
+
+    public int getMailboxCacheSize() {
+        return this.mailboxCacheSize;
+    }
+
+    public String getUsersStore() {
+        return this.usersStore;
+    }
+
+    public int getUsersSnapshotEvery() {
+        return this.usersSnapshotEvery;
+    }
+
+    public int getAuthIterations() {
+        return this.authIterations;
+    }
+
+    public int getAuthThreads() {
+        return this.authThreads;
+    }
+
+    public int getAuthQueueCapacity() {
+        return this.authQueueCapacity;
+    }
+
+    public int getAuthCacheSize() {
+        return this.authCacheSize;
+    }
+
+    public boolean isClustered() {
+        return this.clusterPort >= 0;
+    }
+
+    public int getClusterPort() {
+        return this.clusterPort;
+    }
+
+    public String getClusterNode() {
+        return this.clusterNode;
+    }
+
+    public String getClusterPeers() {
+        return this.clusterPeers;
+    }
+
+    public String getClusterBindAddress() {
+        return this.clusterBindAddress;
+    }
+
+    public String getClusterSecret() {
+        return this.clusterSecret;
+    }
+
+    public int getPresenceDelayMillis() {
+        return this.presenceDelayMillis;
+    }
+
+    // 0 if the fan-outs are never given to the shards:
+    public int getFanoutThreshold() {
+        return this.fanoutThreshold;
+    }
+
+    public int getFanoutShards() {
+        return this.fanoutShards;
+    }
+
+    public int getBinarySymbols() {
+        return this.binarySymbols;
+    }
+
+    // The timeouts in milliseconds, 0 if disabled:
+    public long getLoginTimeoutMillis() {
+        return this.loginTimeoutSeconds * 1000L;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return this.idleTimeoutSeconds * 1000L;
+    }
+
+    public long getHeartbeatMillis() {
+        return this.heartbeatSeconds * 1000L;
+    }
+
+    public boolean isTestUsersEnabled() {
+        return this.testUsers;
+    }
+
+    public boolean isAdmin(String login) {
+        return login != null && admins.contains(login.toLowerCase(Locale.ROOT));
+    }
+
+}// end class
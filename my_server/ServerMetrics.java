@@ -0,0 +1,329 @@
+package my_server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import my_client.ClientProcessor;
+import my_server.CommandDecoder.Command;
+import my_server.OutboundQueue.Lane;
+
+/**
+ * The counters and histograms of the server's hot paths.
+ *
+ * Everything is recorded with LongAdders and LatencyHistograms, so the client threads update them without waiting for
+ * each other. They are read by the 'stats' command (for the admins, see chat.admins) and through JMX.
+ *
+ * @author Fares Abu Ali
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private static final Logger LOG = Logger.getLogger(ServerMetrics.class.getName());
+
+    private static final Command[] COMMANDS = Command.values();
+    private static final Lane[] LANES = Lane.values();
+
+    private final MyServer server;
+
+    // Per command type: how many were received, and how long the server took to handle them (in ns).
+    private final LongAdder[] commandCounts = new LongAdder[COMMANDS.length];
+    private final LatencyHistogram[] commandLatencies = new LatencyHistogram[COMMANDS.length];
+
+    // Per command type: how many messages its handler queued for the clients (a broadcast counts one per recipient).
+    private final LongAdder[] commandMessagesOut = new LongAdder[COMMANDS.length];
+
+    // The command the current thread is handling, null outside of a command (the presence batches, the heartbeats, the
+    // logins completed by the authenticator, the cluster): their messages are counted in otherMessagesOut.
+    private final ThreadLocal<Command> currentCommand = new ThreadLocal<>();
+    private final LongAdder otherMessagesOut = new LongAdder();
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder pingsSent = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final LatencyHistogram fanoutSizes = new LatencyHistogram(); // recipients per broadcast/topic message
+    private final LatencyHistogram queueDepths = new LatencyHistogram(); // depth of the outbound queue after each message
+
+    // Per lane of the outbound queues: how long the messages waited before their writer took them (in ns).
+    private final LatencyHistogram[] laneLatencies = new LatencyHistogram[LANES.length];
+
+    public ServerMetrics(MyServer server) {
+        this.server = server;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            commandCounts[i] = new LongAdder();
+            commandLatencies[i] = new LatencyHistogram();
+            commandMessagesOut[i] = new LongAdder();
+        }
+        for (int i = 0; i < LANES.length; i++) {
+            laneLatencies[i] = new LatencyHistogram();
+        }
+    }// end constructor
+
+    // Makes the metrics visible in jconsole/VisualVM, one MBean per port (several servers may run in the same JVM).
+    public void registerMBean(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("my_server:type=ServerMetrics,port=" + port));
+        } catch (InstanceAlreadyExistsException ex) {
+            LOG.warning("the metrics MBean of port " + port + " is already registered, this server's isn't");
+        } catch (JMException ex) {
+            throw new IllegalStateException("could not register the metrics MBean", ex);
+        }
+    }// end method
+
+    //=================================================
+    // The messages queued by this thread until commandHandled() are counted for this command.
+    public void commandStarted(Command command) {
+        currentCommand.set(command);
+    }
+
+    public void commandHandled(Command command, long nanos) {
+        commandCounts[command.ordinal()].increment();
+        commandLatencies[command.ordinal()].record(nanos);
+        commandEnded();
+    }
+
+    // For the work a command hands to other threads (i.e. the fan-out shards): they run it between commandStarted() and commandEnded().
+    public Command getCurrentCommand() {
+        return currentCommand.get();
+    }
+
+    public void commandEnded() {
+        currentCommand.remove();
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public void messageQueued(int queueDepth) {
+        messagesOut.increment();
+        queueDepths.record(queueDepth);
+
+        Command command = currentCommand.get();
+        if (command != null) {
+            commandMessagesOut[command.ordinal()].increment();
+        } else {
+            otherMessagesOut.increment();
+        }
+    }
+
+    public void messageDequeued(Lane lane, long waitedNanos) {
+        laneLatencies[lane.ordinal()].record(waitedNanos);
+    }
+
+    public void messageDropped() {
+        droppedMessages.increment();
+    }
+
+    public void bytesWritten(long count) {
+        bytesWritten.add(count);
+    }
+
+    public void fanout(int recipients) {
+        fanoutSizes.record(recipients);
+    }
+
+    public void pingSent() {
+        pingsSent.increment();
+    }
+
+    // A connection closed by a timeout (see ClientProcessor.expire()):
+    public void connectionEvicted() {
+        evictions.increment();
+    }
+    //=================================================
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getConnectedCount();
+    }
+
+    @Override
+    public int getOnlineUsers() {
+        return server.getOnlineClients().size();
+    }
+
+    @Override
+    public int getTopics() {
+        return server.getTopicRegistry().getTopicsCount();
+    }
+
+    @Override
+    public long getCommandsReceived() {
+        long total = 0;
+        for (LongAdder count : commandCounts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    // The messages waiting in all the outbound queues right now:
+    @Override
+    public long getQueuedMessages() {
+        long total = 0;
+        for (Acceptor acceptor : server.getAcceptors()) {
+            for (ClientProcessor client : acceptor.getClients()) {
+                total += client.getOutboundQueue().size();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getDeepestQueue() {
+        long deepest = 0;
+        for (Acceptor acceptor : server.getAcceptors()) {
+            for (ClientProcessor client : acceptor.getClients()) {
+                deepest = Math.max(deepest, client.getOutboundQueue().size());
+            }
+        }
+        return deepest;
+    }
+
+    // The messages waiting in one lane of all the outbound queues right now:
+    public long getQueuedMessages(Lane lane) {
+        long total = 0;
+        for (Acceptor acceptor : server.getAcceptors()) {
+            for (ClientProcessor client : acceptor.getClients()) {
+                total += client.getOutboundQueue().size(lane);
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getDirectLatencyP99() {
+        return laneLatencies[Lane.DIRECT.ordinal()].getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getFanoutSizeP99() {
+        return fanoutSizes.getPercentile(99);
+    }
+
+    @Override
+    public String getReport() {
+        return report("\n");
+    }
+
+    // One line per metric, the latencies in microseconds.
+    public String report(String lineEnd) {
+        StringBuilder report = new StringBuilder();
+
+        report.append("connections: current=").append(getConnectedClients())
+                .append(" opened=").append(getConnectionsOpened())
+                .append(" closed=").append(getConnectionsClosed())
+                .append(" evicted=").append(getEvictions()).append(lineEnd);
+        report.append("acceptors: ").append(server.getAcceptors().length)
+                .append(server.isReusePort() ? " (SO_REUSEPORT)" : "").append(" accepted=");
+        for (int i = 0; i < server.getAcceptors().length; i++) {
+            report.append(i == 0 ? "" : "/").append(server.getAcceptors()[i].getAcceptedCount());
+        }
+        report.append(lineEnd);
+        report.append("timeouts: waiting=").append(server.getTimerWheel().getScheduledCount())
+                .append(" pings=").append(pingsSent.sum()).append(lineEnd);
+        report.append("users online=").append(getOnlineUsers())
+                .append(" registered=").append(server.getAuthenticator().getStore().size())
+                .append(" topics=").append(getTopics())
+                .append(" patterns=").append(server.getTopicRegistry().getPatternsCount())
+                .append(" logins waiting=").append(server.getAuthenticator().getQueuedCount()).append(lineEnd);
+
+        for (Command command : COMMANDS) {
+            if (command != Command.BLANK && commandCounts[command.ordinal()].sum() > 0) {
+                report.append("in ").append(command.name().toLowerCase()).append(" (us): ")
+                        .append(commandLatencies[command.ordinal()].summary(1000))
+                        .append(" messages out=").append(commandMessagesOut[command.ordinal()].sum()).append(lineEnd);
+            }
+        }
+
+        report.append("out: messages=").append(getMessagesOut())
+                .append(" (not from a command=").append(otherMessagesOut.sum()).append(")")
+                .append(" bytes=").append(getBytesWritten())
+                .append(" dropped=").append(getDroppedMessages()).append(lineEnd);
+        report.append("outbound queues: queued=").append(getQueuedMessages())
+                .append(" deepest=").append(getDeepestQueue())
+                .append(" depth ").append(queueDepths.summary(1)).append(lineEnd);
+        for (Lane lane : LANES) {
+            report.append("lane ").append(lane.name().toLowerCase()).append(": queued=").append(getQueuedMessages(lane))
+                    .append(" waited (us) ").append(laneLatencies[lane.ordinal()].summary(1000)).append(lineEnd);
+        }
+        report.append("fan-out sizes: ").append(fanoutSizes.summary(1)).append(lineEnd);
+        FanoutShards fanoutShards = server.getFanoutShards();
+        if (fanoutShards != null) {
+            report.append("fan-out shards: ").append(fanoutShards.getShardsCount())
+                    .append(" parallel=").append(fanoutShards.getParallelFanouts())
+                    .append(" refused=").append(fanoutShards.getRefusedCount())
+                    .append(" queued=").append(fanoutShards.getQueuedTasks()).append(lineEnd);
+        }
+
+        report.append("presence: changes=").append(server.getPresence().getChangesCount())
+                .append(" batches=").append(server.getPresence().getBatchesCount()).append(lineEnd);
+
+        TopicLog topicLog = server.getTopicLog();
+        if (topicLog != null) {
+            report.append("topic history: appended=").append(topicLog.getAppendedCount())
+                    .append(" dropped=").append(topicLog.getDroppedCount())
+                    .append(" refused=").append(topicLog.getRefusedCount()).append(lineEnd);
+        }
+
+        OfflineMailbox offlineMailbox = server.getOfflineMailbox();
+        if (offlineMailbox != null) {
+            report.append("offline messages: stored=").append(offlineMailbox.getStoredCount())
+                    .append(" delivered=").append(offlineMailbox.getDeliveredCount())
+                    .append(" refused=").append(offlineMailbox.getRefusedCount()).append(lineEnd);
+        }
+
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            report.append("cluster: node=").append(cluster.getNodeId())
+                    .append(" peers=").append(cluster.getPeersCount())
+                    .append(" remote users=").append(cluster.getRemoteLogins().size())
+                    .append(" frames sent=").append(cluster.getFramesSent())
+                    .append(" received=").append(cluster.getFramesReceived())
+                    .append(" dropped=").append(cluster.getFramesDropped()).append(lineEnd);
+        }
+
+        return report.toString();
+    }// end method
+
+}// end class
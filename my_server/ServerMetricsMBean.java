@@ -0,0 +1,42 @@
+package my_server;
+
+/**
+ * What the server exposes through JMX (i.e. in jconsole, under my_server:type=ServerMetrics,port=<its port>).
+ *
+ * @author Fares Abu Ali
+ */
+public interface ServerMetricsMBean {
+
+    long getConnectionsOpened();
+
+    long getConnectionsClosed();
+
+    long getEvictions();
+
+    int getConnectedClients();
+
+    int getOnlineUsers();
+
+    int getTopics();
+
+    long getCommandsReceived();
+
+    long getMessagesOut();
+
+    long getBytesWritten();
+
+    long getDroppedMessages();
+
+    long getQueuedMessages();
+
+    long getDeepestQueue();
+
+    long getFanoutSizeP99();
+
+    // How long the direct messages waited in the outbound queues (p99, in microseconds).
+    long getDirectLatencyP99();
+
+    // The same report as the 'stats' command.
+    String getReport();
+
+}// end interface
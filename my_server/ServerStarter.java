@@ -16,8 +16,10 @@ public class ServerStarter {
          * If I specify a port of 0 to the ServerSocket constructor, then it
          * will listen on any free port:
          */
+        AsyncLogHandler.install(); // the server threads never wait for the console
+
         int port = 0;
-        MyServer server = new MyServer(port);
+        MyServer server = new MyServer(port, ServerConfig.fromArgs(args));
         server.start(); // will invoke the 'run()' method of the 'Server' class
     }// end main
 }// end class
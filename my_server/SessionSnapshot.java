@@ -0,0 +1,191 @@
+package my_server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What a drained server leaves to the next one (chat-data/sessions.snapshot): for every logged in user, the topics he
+ * had joined and the lines that were still waiting in his outbound queue. When he logs in again after the restart he
+ * is put back in his topics and gets those lines, without sending a single 'join'.
+ *
+ * The file is written once, by MyServer.drain(), to a temporary file renamed at the end:
+ *
+ * <pre>
+ *     int magic ("CHS1"), int sessions
+ *     per session: login, int topics, the topics, int lines, the lines
+ *     (a name is a short length + its UTF-8 bytes, a line an int length + its bytes)
+ * </pre>
+ *
+ * At startup it is read with one memory-mapped buffer (no stream, no line parsing) and deleted right away: a snapshot is
+ * used by one start only, a crash of the next server must not restore it again. The users who don't come back before the
+ * next drain are written in the next snapshot.
+ *
+ * @author Fares Abu Ali
+ */
+public class SessionSnapshot {
+
+    private static final Logger LOG = Logger.getLogger(SessionSnapshot.class.getName());
+
+    private static final int MAGIC = 0x43485331; // "CHS1"
+
+    public static final class Session {
+
+        private final String login;
+        private final List<String> topics;
+        private final List<byte[]> pendingLines;
+
+        public Session(String login, List<String> topics, List<byte[]> pendingLines) {
+            this.login = login;
+            this.topics = topics;
+            this.pendingLines = pendingLines;
+        }
+
+        public String getLogin() {
+            return this.login;
+        }
+
+        public List<String> getTopics() {
+            return this.topics;
+        }
+
+        public List<byte[]> getPendingLines() {
+            return this.pendingLines;
+        }
+    }// end class
+
+    private final Path file;
+
+    // The sessions of the last snapshot whose user hasn't logged in again yet, by login in lower case:
+    private final ConcurrentHashMap<String, Session> restored = new ConcurrentHashMap<>();
+
+    public SessionSnapshot(ServerConfig config) {
+        this.file = Path.of(config.getDataDirectory(), "sessions.snapshot");
+        try {
+            load();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("could not load " + file, ex);
+        }
+    }// end constructor
+
+    private static String key(String login) {
+        return login.toLowerCase(Locale.ROOT);
+    }
+
+    private void load() throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                if (bytes.getInt() != MAGIC) {
+                    throw new IOException("not a sessions snapshot");
+                }
+                for (int count = bytes.getInt(); count > 0; count--) {
+                    Session session = readSession(bytes);
+                    restored.put(key(session.getLogin()), session);
+                }
+            } catch (IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+                // A damaged snapshot only costs the warm start, never the start:
+                LOG.log(Level.WARNING, "ignoring the damaged " + file, ex);
+                restored.clear();
+            }
+        } catch (NoSuchFileException ex) {
+            return; // a cold start
+        }
+        Files.delete(file);
+
+        long micros = (System.nanoTime() - start) / 1000;
+        LOG.info(() -> restored.size() + " sessions restored from " + file + " in " + micros + " us");
+    }// end method
+
+    private static Session readSession(ByteBuffer bytes) {
+        String login = readName(bytes);
+        List<String> topics = new ArrayList<>();
+        for (int count = bytes.getInt(); count > 0; count--) {
+            topics.add(readName(bytes));
+        }
+        List<byte[]> lines = new ArrayList<>();
+        for (int count = bytes.getInt(); count > 0; count--) {
+            byte[] line = new byte[bytes.getInt()];
+            bytes.get(line);
+            lines.add(line);
+        }
+        return new Session(login, topics, lines);
+    }// end method
+
+    private static String readName(ByteBuffer bytes) {
+        byte[] name = new byte[bytes.getShort() & 0xFFFF];
+        bytes.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }// end method
+
+    // The restored session of this user, once (null if he had none).
+    public Session take(String login) {
+        return restored.remove(key(login));
+    }
+
+    public int getRestoredCount() {
+        return restored.size();
+    }
+
+    /*
+        Writes the sessions of the drained server, with the restored ones that haven't been taken (a user logged in now
+        wins over his old restored session).
+     */
+    public void write(Collection<Session> sessions) throws IOException {
+        Map<String, Session> all = new HashMap<>(restored);
+        for (Session session : sessions) {
+            all.put(key(session.getLogin()), session);
+        }
+
+        Files.createDirectories(file.getParent());
+        Path temporary = file.resolveSibling("sessions.snapshot.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(all.size());
+            for (Session session : all.values()) {
+                writeName(out, session.getLogin());
+                out.writeInt(session.getTopics().size());
+                for (String topic : session.getTopics()) {
+                    writeName(out, topic);
+                }
+                out.writeInt(session.getPendingLines().size());
+                for (byte[] line : session.getPendingLines()) {
+                    out.writeInt(line.length);
+                    out.write(line);
+                }
+            }
+        }
+        try (FileChannel written = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }// end method
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length); // the names are shorter than chat.line.max
+        out.write(bytes);
+    }// end method
+
+}// end class
@@ -0,0 +1,50 @@
+package my_server;
+
+/**
+ * Text lines given to many clients at once (a batch of presence changes, a line from another node of the cluster).
+ *
+ * Like ChatMessage, the forms the binary clients need are built once, by the first of them: the TEXT frame, and that
+ * frame deflated with the dictionary of the connection. A fan-out to thousands of 'binary deflate' clients then
+ * compresses the lines once, not once per recipient. The arrays returned are shared, nobody may modify them.
+ *
+ * @author Fares Abu Ali
+ */
+public final class SharedLines {
+
+    private final byte[] text;
+
+    // Built on demand. Two threads may build them at the same time, they build the same bytes.
+    private volatile byte[] frame;
+    private volatile ChatMessage.Compressed compressed;
+
+    // 'text' must not be modified afterwards.
+    public SharedLines(byte[] text) {
+        this.text = text;
+    }// end constructor
+
+    public byte[] text() {
+        return this.text;
+    }
+
+    // The TEXT frame of the lines (see BinaryProtocol).
+    public byte[] frame() {
+        byte[] binary = frame;
+        if (binary == null) {
+            binary = BinaryProtocol.frame(BinaryProtocol.TEXT, text);
+            frame = binary;
+        }
+        return binary;
+    }// end method
+
+    // The TEXT frame deflated with this dictionary (see BinaryProtocol.compress()).
+    public byte[] compressedFrame(byte[] dictionary) {
+        ChatMessage.Compressed last = compressed;
+        if (last != null && last.dictionary == dictionary) {
+            return last.frame;
+        }
+        byte[] deflated = BinaryProtocol.compress(frame(), dictionary);
+        compressed = new ChatMessage.Compressed(dictionary, deflated);
+        return deflated;
+    }// end method
+
+}// end class
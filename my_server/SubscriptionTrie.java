@@ -0,0 +1,172 @@
+package my_server;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import my_client.ClientProcessor;
+
+/**
+ * The wildcard subscriptions of the topics (i.e. 'join #ops.*' or 'join #ops.#'), as a trie of their levels.
+ *
+ * A topic is cut into levels at the dots: "#ops.db.alerts" is ops / db / alerts. In a pattern, a "*" level matches
+ * exactly one level, and a "#" level (the last one only) matches any number of levels, none included: "#ops.#" matches
+ * "#ops", "#ops.db" and "#ops.db.alerts".
+ *
+ * Finding the subscribers of a published topic walks the trie level by level, following the exact level, "*" and
+ * "#": it costs about the depth of the topic, whatever the number of patterns. The readers (the senders of the
+ * messages) take no lock, the nodes are ConcurrentHashMaps; join/leave take turns on a lock, so a leave can remove the
+ * nodes left empty without losing the join of somebody else.
+ *
+ * @author Fares Abu Ali
+ */
+public class SubscriptionTrie {
+
+    public static final String ONE_LEVEL = "*";
+    public static final String ANY_LEVELS = "#";
+
+    private static final class Node {
+
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        final Set<ClientProcessor> subscribers = ConcurrentHashMap.newKeySet();
+    }// end class
+
+    private final Node root = new Node();
+
+    // Only for the writers (subscribe/unsubscribe):
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // The patterns that have at least one subscriber:
+    private final AtomicInteger patternsCount = new AtomicInteger();
+
+    // "#ops.db.alerts" --> ops, db, alerts
+    public static String[] levels(String topic) {
+        return topic.substring(1).split("\\.", -1);
+    }
+
+    public static boolean isPattern(String topic) {
+        if (topic.isEmpty() || topic.charAt(0) != '#') {
+            return false; // not a topic
+        }
+        for (String level : levels(topic)) {
+            if (level.equals(ONE_LEVEL) || level.equals(ANY_LEVELS)) {
+                return true;
+            }
+        }
+        return false;
+    }// end method
+
+    // A "#" level is only allowed at the end of a pattern.
+    public static boolean isValidPattern(String topic) {
+        String[] levels = levels(topic);
+        for (int i = 0; i < levels.length - 1; i++) {
+            if (levels[i].equals(ANY_LEVELS)) {
+                return false;
+            }
+        }
+        return true;
+    }// end method
+
+    // Whether this pattern matches this (published) topic, without the trie (i.e. for 'history').
+    public static boolean matches(String pattern, String topic) {
+        return matches(levels(pattern), 0, levels(topic), 0);
+    }
+
+    private static boolean matches(String[] pattern, int p, String[] topic, int t) {
+        if (p == pattern.length) {
+            return t == topic.length;
+        }
+        if (pattern[p].equals(ANY_LEVELS)) {
+            return true;
+        }
+        if (t == topic.length) {
+            return false;
+        }
+        return (pattern[p].equals(ONE_LEVEL) || pattern[p].equals(topic[t])) && matches(pattern, p + 1, topic, t + 1);
+    }// end method
+
+    public void subscribe(String pattern, ClientProcessor client) {
+        lock.lock();
+        try {
+            Node node = root;
+            for (String level : levels(pattern)) {
+                node = node.children.computeIfAbsent(level, name -> new Node());
+            }
+            if (node.subscribers.isEmpty()) {
+                patternsCount.incrementAndGet();
+            }
+            node.subscribers.add(client);
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    public void unsubscribe(String pattern, ClientProcessor client) {
+        String[] levels = levels(pattern);
+        Node[] path = new Node[levels.length + 1];
+
+        lock.lock();
+        try {
+            path[0] = root;
+            for (int i = 0; i < levels.length; i++) {
+                path[i + 1] = path[i].children.get(levels[i]);
+                if (path[i + 1] == null) {
+                    return; // nobody has joined this pattern
+                }
+            }
+            Node node = path[levels.length];
+            if (!node.subscribers.remove(client)) {
+                return;
+            }
+            if (node.subscribers.isEmpty()) {
+                patternsCount.decrementAndGet();
+            }
+
+            // The nodes left without subscribers and children, from the bottom up:
+            for (int i = levels.length; i > 0; i--) {
+                if (!path[i].subscribers.isEmpty() || !path[i].children.isEmpty()) {
+                    break;
+                }
+                path[i - 1].children.remove(levels[i - 1], path[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    // Adds the (live) sets of subscribers of the patterns matching this published topic to 'into', not copied.
+    public void collect(String topic, Collection<Set<ClientProcessor>> into) {
+        collect(root, levels(topic), 0, into);
+    }
+
+    private static void collect(Node node, String[] levels, int next, Collection<Set<ClientProcessor>> into) {
+        Node any = node.children.get(ANY_LEVELS);
+        if (any != null && !any.subscribers.isEmpty()) {
+            into.add(any.subscribers); // the rest of the levels, whatever they are
+        }
+        if (next == levels.length) {
+            if (!node.subscribers.isEmpty()) {
+                into.add(node.subscribers);
+            }
+            return;
+        }
+        Node exact = node.children.get(levels[next]);
+        if (exact != null) {
+            collect(exact, levels, next + 1, into);
+        }
+        Node one = node.children.get(ONE_LEVEL);
+        if (one != null) {
+            collect(one, levels, next + 1, into);
+        }
+    }// end method
+
+    public boolean isEmpty() {
+        return root.children.isEmpty();
+    }
+
+    public int getPatternsCount() {
+        return patternsCount.get();
+    }
+
+}// end class
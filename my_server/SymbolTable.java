@@ -0,0 +1,68 @@
+package my_server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The numbers the binary protocol uses instead of the names of the users and topics (see BinaryProtocol).
+ *
+ * The ids are the same for every connection, so a message is encoded once and the same frame goes to all its binary
+ * recipients. A name keeps its id as long as the server runs. There are chat.binary.symbols ids at most: when they
+ * are all taken, intern() returns -1 and the messages with new names are sent as text frames.
+ *
+ * @author Fares Abu Ali
+ */
+public class SymbolTable {
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    // names[id], replaced by a bigger copy when it is full. Read without the lock.
+    private volatile String[] names = new String[1024];
+    private final ReentrantLock lock = new ReentrantLock();
+    private int size; // with the lock. The id 0 is never used.
+
+    public SymbolTable(int capacity) {
+        this.capacity = capacity;
+    }// end constructor
+
+    // The id of this name, given now if it didn't have one. Returns -1 if the table is full.
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        lock.lock();
+        try {
+            id = ids.get(name);
+            if (id != null) {
+                return id; // interned by somebody else in the meantime
+            }
+            if (size >= capacity) {
+                return -1;
+            }
+            int newId = ++size;
+            if (newId >= names.length) {
+                names = Arrays.copyOf(names, names.length * 2);
+            }
+            names[newId] = name;
+            ids.put(name, newId); // after names[], so whoever gets the id can read its name
+            return newId;
+        } finally {
+            lock.unlock();
+        }
+    }// end method
+
+    // The name of this id, or null if there is no such id.
+    public String name(int id) {
+        String[] current = names;
+        return (id > 0 && id < current.length) ? current[id] : null;
+    }// end method
+
+    public int size() {
+        return ids.size();
+    }
+
+}// end class
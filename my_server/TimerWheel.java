@@ -0,0 +1,127 @@
+package my_server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One daemon thread that runs the timeouts of all the connections (heartbeats, idle and login timeouts), instead of
+ * one timer per connection.
+ *
+ * It is a hashed timing wheel: 'slots' queues, one per tick of 'tickMillis'. A timeout goes into the slot of its
+ * deadline, and every tick the thread only looks at the timeouts of the current slot. The ones whose deadline is more
+ * than a turn of the wheel away are left in their slot for the next turn. Scheduling is a queue offer, so the threads
+ * of the clients never wait for it.
+ *
+ * A timeout is never cancelled: when it expires it checks what has happened since (i.e. the client has sent something)
+ * and returns its next deadline, or -1 if it is over. So the hot paths only have to record the time of the last read.
+ *
+ * @author Fares Abu Ali
+ */
+public class TimerWheel {
+
+    private static final Logger LOG = Logger.getLogger(TimerWheel.class.getName());
+
+    public interface Timeout {
+
+        // Called on the wheel's thread during the tick of the deadline. Returns the next deadline, or -1 to be forgotten.
+        long expire(long now);
+    }
+
+    private static final class Entry {
+
+        final Timeout timeout;
+        final long deadline;
+
+        Entry(Timeout timeout, long deadline) {
+            this.timeout = timeout;
+            this.deadline = deadline;
+        }
+    }// end class
+
+    private final long tickMillis;
+    private final Queue<Entry>[] slots;
+    private final AtomicLong scheduled = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(String name, long tickMillis, int slots) {
+        this.tickMillis = tickMillis;
+        this.slots = new Queue[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new ConcurrentLinkedQueue<>();
+        }
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }// end constructor
+
+    // 'deadline' is in System.currentTimeMillis() time.
+    public void schedule(Timeout timeout, long deadline) {
+        // Not before the next tick: the slot of the current one may have been expired already.
+        deadline = Math.max(deadline, (System.currentTimeMillis() / tickMillis + 1) * tickMillis);
+        slotOf(deadline).add(new Entry(timeout, deadline));
+        scheduled.incrementAndGet();
+    }// end method
+
+    private Queue<Entry> slotOf(long deadline) {
+        return slots[(int) ((deadline / tickMillis) % slots.length)];
+    }
+
+    private void run() {
+        long tick = System.currentTimeMillis() / tickMillis;
+        while (true) {
+            try {
+                long sleep = (tick + 1) * tickMillis - System.currentTimeMillis();
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+                tick++;
+                expireSlot(tick);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "a timeout failed", ex);
+            }
+        }// end while
+    }// end method
+
+    private void expireSlot(long tick) {
+        Queue<Entry> slot = slots[(int) (tick % slots.length)];
+        long now = System.currentTimeMillis();
+        long tickEnd = (tick + 1) * tickMillis;
+
+        // Only the entries that are already there: the ones put back below wait for the next turn.
+        for (int count = slot.size(); count > 0; count--) {
+            Entry entry = slot.poll();
+            if (entry == null) {
+                break;
+            }
+            if (entry.deadline >= tickEnd) {
+                slot.add(entry); // a later turn of the wheel
+                continue;
+            }
+            scheduled.decrementAndGet();
+
+            long next;
+            try {
+                next = entry.timeout.expire(now);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "a timeout failed", ex);
+                continue;
+            }
+            if (next >= 0) {
+                schedule(entry.timeout, next);
+            }
+        }
+    }// end method
+
+    // How many timeouts are waiting:
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+
+}// end class
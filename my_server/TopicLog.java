@@ -0,0 +1,495 @@
+package my_server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The history of the topics: every 'msg #topic' is appended to a log on disk, so the clients who join later (or after a
+ * restart of the server) can ask for the last messages with 'history #topic n'.
+ *
+ * Each topic has its own directory of segment files (chat-data/topics/%23topic/00000000000000000001.log ..). A segment
+ * is memory-mapped, and the records are appended one after the other:
+ *
+ * <pre>
+ *     [int length][long time millis][the bytes of the line, exactly as they were sent to the members]
+ * </pre>
+ *
+ * The rest of the segment is zeros, so the first length 0 is the end of the records. When a record doesn't fit, a new
+ * segment is started. The oldest segments are deleted when a topic uses more than chat.history.max.bytes, or when their
+ * newest record is older than chat.history.max.age hours.
+ *
+ * Anybody can create topics, so the whole log is bounded too: at most chat.history.max.topics topics have a history, and
+ * at most chat.history.max.segments segments exist on disk (a topic needing a new one past that recycles its own oldest,
+ * and the messages of a new topic past the topics limit aren't kept). Only the recently used topics stay open: a topic
+ * unused for a few minutes, or the least recently used one beyond MAX_OPEN_TOPICS, is closed and its segments unmapped.
+ *
+ * Everything (appends, history reads, retention) runs on the one 'topic-log' thread, so the segments need no locking.
+ * The senders only put their message in a bounded queue: if the disk can't keep up, the history loses messages (they
+ * are counted) but the fan-out never waits for it.
+ *
+ * @author Fares Abu Ali
+ */
+public class TopicLog {
+
+    private static final Logger LOG = Logger.getLogger(TopicLog.class.getName());
+
+    private static final int HEADER_SIZE = 4 + 8; // length + time
+    private static final long RETENTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    // The closed topics are checked for old segments this often (they have to be opened for it):
+    private static final long CLOSED_TOPICS_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    // The open topics (with their segments mapped): the idle ones are closed, and never more than this many.
+    private static final int MAX_OPEN_TOPICS = 256;
+    private static final long IDLE_TOPIC_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // Unmaps a MappedByteBuffer right away (sun.misc.Unsafe.invokeCleaner), null if this JVM doesn't let us:
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            LOG.log(Level.FINE, "the history segments will be unmapped by the garbage collector", ex);
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int maxTopics;
+    private final int maxSegments;
+
+    // Runs all the work on the topic-log thread. A task that doesn't fit in its queue is dropped instead of blocking the sender:
+    private final BackgroundWorker worker;
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+
+    /*
+        Only used by the topic-log thread. The topics are opened (and their segments indexed) the first time they are used,
+        and kept in the order they were last used (the eldest is closed first).
+     */
+    private final LinkedHashMap<String, Topic> openTopics = new LinkedHashMap<>(16, 0.75f, true);
+
+    // What is on disk, open or not (the topic-log thread only, after the constructor):
+    private int topicCount;
+    private int segmentCount;
+    private long nextClosedTopicsCheck = System.currentTimeMillis() + CLOSED_TOPICS_INTERVAL;
+
+    public TopicLog(ServerConfig config) {
+        this.directory = Path.of(config.getDataDirectory(), "topics");
+        this.segmentSize = config.getHistorySegmentSize();
+        this.maxBytes = config.getHistoryMaxBytes();
+        this.maxAgeMillis = TimeUnit.HOURS.toMillis(config.getHistoryMaxAgeHours());
+        this.maxTopics = config.getHistoryMaxTopics();
+        this.maxSegments = config.getHistoryMaxSegments();
+        try {
+            countFiles();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("could not read " + directory, ex);
+        }
+        this.worker = new BackgroundWorker("topic-log", 10_000, RETENTION_INTERVAL, this::applyRetention);
+    }// end constructor
+
+    // The topics and segments left by the last server, so the limits count them too:
+    private void countFiles() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> topicDirectories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path topicDirectory : topicDirectories) {
+                topicCount++;
+                try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(topicDirectory, "*.log")) {
+                    for (Path file : segmentFiles) {
+                        segmentCount++;
+                    }
+                }
+            }
+        }
+    }// end method
+
+    /*
+        Called by the sender of a 'msg #topic', after the fan-out. 'line' is the same (shared) array that was sent to the members,
+        it is only read.
+     */
+    public void append(String topic, byte[] line) {
+        long time = System.currentTimeMillis();
+        worker.submit(() -> {
+            try {
+                Topic log = topic(topic, true);
+                if (log != null && log.append(line, time)) {
+                    appendedCount.incrementAndGet();
+                } else {
+                    refusedCount.incrementAndGet();
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "could not append to the history of " + topic, ex);
+            }
+        });
+    }// end method
+
+    /*
+        Copies the last 'count' lines of the topic straight from the mapped segments into one array, and gives it to 'reply'
+        (on the topic-log thread). The array is empty if the topic has no history.
+        Returns false if the topic-log thread is too busy to take the request.
+     */
+    public boolean history(String topic, int count, Consumer<byte[]> reply) {
+        return worker.submit(() -> {
+            byte[] lines;
+            try {
+                Topic log = topic(topic, false);
+                lines = (log == null) ? new byte[0] : log.lastRecords(count);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "could not read the history of " + topic, ex);
+                lines = new byte[0];
+            }
+            reply.accept(lines);
+        });
+    }// end method
+
+    // Every RETENTION_INTERVAL: deletes the old segments of the open topics, and closes the idle ones.
+    private void applyRetention() {
+        long idleSince = System.currentTimeMillis() - IDLE_TOPIC_MILLIS;
+
+        for (Iterator<Topic> iterator = openTopics.values().iterator(); iterator.hasNext();) {
+            Topic topic = iterator.next();
+            try {
+                topic.applyRetention();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "could not delete the old history of " + topic.directory, ex);
+            }
+            if (topic.lastUsed < idleSince || topic.segments.isEmpty()) {
+                iterator.remove();
+                close(topic);
+            }
+        }
+
+        if (System.currentTimeMillis() >= nextClosedTopicsCheck) {
+            applyRetentionToClosedTopics();
+            nextClosedTopicsCheck = System.currentTimeMillis() + CLOSED_TOPICS_INTERVAL;
+        }
+    }// end method
+
+    // The topics nobody has used lately age too: each one is opened (which applies the retention), then closed again.
+    private void applyRetentionToClosedTopics() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> closed = new ArrayList<>();
+        try (DirectoryStream<Path> topicDirectories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path topicDirectory : topicDirectories) {
+                closed.add(topicDirectory);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "could not list " + directory, ex);
+            return;
+        }
+        for (Topic open : openTopics.values()) {
+            closed.remove(open.directory);
+        }
+
+        for (Path topicDirectory : closed) {
+            try {
+                close(new Topic(topicDirectory));
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "could not delete the old history of " + topicDirectory, ex);
+            }
+        }
+    }// end method
+
+    /*
+        The log of this topic, opened if needed. A topic without history on disk is only created if 'create' is true, and
+        if there is room for one more (chat.history.max.topics). Returns null otherwise.
+     */
+    private Topic topic(String name, boolean create) throws IOException {
+        Topic topic = openTopics.get(name);
+        if (topic == null) {
+            Path topicDirectory = directory.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8));
+            if (!Files.isDirectory(topicDirectory)) {
+                if (!create) {
+                    return null; // no history, and nothing to create for a read
+                }
+                if (topicCount >= maxTopics) {
+                    LOG.fine(() -> "no history for " + name + ": chat.history.max.topics is reached");
+                    return null;
+                }
+                Files.createDirectories(topicDirectory);
+                topicCount++;
+            }
+
+            topic = new Topic(topicDirectory);
+            openTopics.put(name, topic);
+            if (openTopics.size() > MAX_OPEN_TOPICS) {
+                Iterator<Topic> eldest = openTopics.values().iterator();
+                Topic closed = eldest.next();
+                eldest.remove();
+                close(closed);
+            }
+        }
+        topic.lastUsed = System.currentTimeMillis();
+        return topic;
+    }// end method
+
+    // Unmaps the segments of a topic nobody uses now. Its directory is deleted if it has no segment left.
+    private void close(Topic topic) {
+        for (Segment segment : topic.segments) {
+            unmap(segment.buffer);
+        }
+        if (topic.segments.isEmpty()) {
+            try {
+                if (Files.deleteIfExists(topic.directory)) {
+                    topicCount--;
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "could not delete " + topic.directory, ex);
+            }
+        }
+    }// end method
+
+    /*
+        Unmaps a segment now instead of when the garbage collector finds it, so the closed topics and the deleted segments
+        don't keep their mappings (vm.max_map_count) and their disk space. Only the topic-log thread uses the segments,
+        and a segment is never read again after this.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException ex) {
+                LOG.log(Level.FINE, "could not unmap a history segment", ex);
+            }
+        }
+    }// end method
+
+    // Waits for the messages appended so far to be written (see BackgroundWorker.awaitIdle()).
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        return worker.awaitIdle(timeoutMillis);
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    // The appends (and history requests) lost because the topic-log thread was behind:
+    public long getDroppedCount() {
+        return worker.getRefusedCount();
+    }
+
+    // The messages not kept because of chat.history.max.topics or chat.history.max.segments:
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    // The segments of one topic, oldest first.
+    private class Topic {
+
+        private final Path directory;
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        private long totalBytes;
+        private long lastUsed = System.currentTimeMillis();
+
+        Topic(Path directory) throws IOException {
+            this.directory = directory;
+
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(directory, "*.log")) {
+                for (Path file : segmentFiles) {
+                    files.add(file);
+                }
+            }
+            Collections.sort(files); // the names are zero-padded numbers
+
+            for (Path file : files) {
+                Segment segment = new Segment(file, Long.parseLong(file.getFileName().toString().replace(".log", "")));
+                segments.addLast(segment);
+                totalBytes += segment.position;
+            }
+            applyRetention();
+        }// end constructor
+
+        // Returns false if the line isn't kept: it is too long, or there is no room for a segment.
+        boolean append(byte[] line, long time) throws IOException {
+            if (HEADER_SIZE + line.length > segmentSize) {
+                LOG.warning(() -> "a message of " + line.length + " bytes doesn't fit in a history segment (chat.history.segment)");
+                return false;
+            }
+            Segment last = segments.peekLast();
+            if (last == null || !last.fits(line.length)) {
+                if (segmentCount >= maxSegments) {
+                    if (segments.isEmpty()) {
+                        return false; // chat.history.max.segments is reached, and this topic has nothing to recycle
+                    }
+                    deleteOldest(); // recycle our own oldest segment
+                }
+                long number = (last == null) ? 1 : last.number + 1;
+                last = new Segment(directory.resolve(String.format("%020d.log", number)), number);
+                segments.addLast(last);
+                segmentCount++;
+                applyRetention();
+            }
+            totalBytes += last.append(line, time);
+            return true;
+        }// end method
+
+        byte[] lastRecords(int count) {
+            // Walk back from the newest segment until we have 'count' records:
+            List<Segment> used = new ArrayList<>();
+            int needed = count;
+            Iterator<Segment> newestFirst = segments.descendingIterator();
+            while (needed > 0 && newestFirst.hasNext()) {
+                Segment segment = newestFirst.next();
+                used.add(segment);
+                needed -= segment.recordCount;
+            }
+            Collections.reverse(used);
+
+            // The first segment may have more records than we need:
+            int skip = Math.max(0, -needed);
+
+            int size = 0;
+            for (int s = 0; s < used.size(); s++) {
+                size += used.get(s).payloadBytes(s == 0 ? skip : 0);
+            }
+
+            byte[] lines = new byte[size];
+            int position = 0;
+            for (int s = 0; s < used.size(); s++) {
+                position = used.get(s).copyPayloads(s == 0 ? skip : 0, lines, position);
+            }
+            return lines;
+        }// end method
+
+        void applyRetention() throws IOException {
+            long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+
+            while (!segments.isEmpty()) {
+                Segment oldest = segments.peekFirst();
+                boolean tooBig = totalBytes > maxBytes && segments.size() > 1; // the newest segment is kept
+                boolean tooOld = oldest.newestTime < oldestAllowed;
+                if (!tooBig && !tooOld) {
+                    break;
+                }
+                deleteOldest();
+            }
+        }// end method
+
+        private void deleteOldest() throws IOException {
+            Segment oldest = segments.pollFirst();
+            totalBytes -= oldest.position;
+            unmap(oldest.buffer);
+            if (Files.deleteIfExists(oldest.file)) {
+                segmentCount--;
+            }
+        }// end method
+
+    }// end class
+
+    // One mapped segment file, with the offsets of its records so the last ones are found without scanning.
+    private class Segment {
+
+        private final Path file;
+        private final long number;
+        private final MappedByteBuffer buffer;
+
+        private int[] offsets = new int[64];
+        private int recordCount;
+        private int position; // where the next record goes
+        private long newestTime;
+
+        Segment(Path file, long number) throws IOException {
+            this.file = file;
+            this.number = number;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            newestTime = System.currentTimeMillis();
+
+            // An existing segment: find its records (they end at the first length 0, or if the server died in the middle of one)
+            while (position + HEADER_SIZE <= segmentSize) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER_SIZE + length > segmentSize) {
+                    break;
+                }
+                newestTime = buffer.getLong(position + 4);
+                addOffset(position);
+                position += HEADER_SIZE + length;
+            }
+        }// end constructor
+
+        boolean fits(int length) {
+            return position + HEADER_SIZE + length <= segmentSize;
+        }
+
+        // Returns the bytes used by the record.
+        int append(byte[] line, long time) {
+            // The payload and the time first, the length last: a record is only visible once it is complete.
+            buffer.put(position + HEADER_SIZE, line);
+            buffer.putLong(position + 4, time);
+            buffer.putInt(position, line.length);
+
+            addOffset(position);
+            position += HEADER_SIZE + line.length;
+            newestTime = time;
+            return HEADER_SIZE + line.length;
+        }// end method
+
+        private void addOffset(int offset) {
+            if (recordCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, recordCount * 2);
+            }
+            offsets[recordCount++] = offset;
+        }// end method
+
+        // The size of the lines from the record 'first' to the end of the segment.
+        int payloadBytes(int first) {
+            if (first >= recordCount) {
+                return 0;
+            }
+            return position - offsets[first] - (recordCount - first) * HEADER_SIZE;
+        }// end method
+
+        int copyPayloads(int first, byte[] destination, int at) {
+            for (int r = first; r < recordCount; r++) {
+                int length = buffer.getInt(offsets[r]);
+                buffer.get(offsets[r] + HEADER_SIZE, destination, at, length);
+                at += length;
+            }
+            return at;
+        }// end method
+
+    }// end class
+
+}// end class
@@ -0,0 +1,176 @@
+package my_server;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import my_client.ClientProcessor;
+
+/**
+ * The server-side index of the topics (chatrooms): for each topic, the set of clients who joined it.
+ *
+ * A 'msg #topic' only visits the members of that topic instead of asking every connected client whether it joined it,
+ * so its cost depends on the size of the topic and not on the number of clients connected to the server.
+ *
+ * The joins of a wildcard pattern (i.e. '#ops.*', see SubscriptionTrie) are kept in a trie instead, and the subscribers
+ * of the patterns matching a topic are added to its members when a message is published to it.
+ *
+ * @author Fares Abu Ali
+ */
+public class TopicRegistry {
+
+    private final ConcurrentHashMap<String, Set<ClientProcessor>> topics = new ConcurrentHashMap<>();
+
+    private final SubscriptionTrie patterns = new SubscriptionTrie();
+
+    public void join(String topic, ClientProcessor client) {
+        if (SubscriptionTrie.isPattern(topic)) {
+            patterns.subscribe(topic, client);
+            return;
+        }
+        topics.compute(topic, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet(); // the first member creates the topic
+            }
+            members.add(client);
+            return members;
+        });
+    }// end method
+
+    public void leave(String topic, ClientProcessor client) {
+        if (SubscriptionTrie.isPattern(topic)) {
+            patterns.unsubscribe(topic, client);
+            return;
+        }
+        // Returning null from computeIfPresent() removes the topic, so the empty topics don't pile up in the map:
+        topics.computeIfPresent(topic, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+    }// end method
+
+    // Removes the client from all the topics it has joined (i.e. when it disconnects):
+    public void leaveAll(Set<String> joinedTopics, ClientProcessor client) {
+        for (String topic : joinedTopics) {
+            leave(topic, client);
+        }
+    }// end method
+
+    /*
+        The clients who get the messages published to this topic: its members, and the subscribers of the patterns that
+        match it. Always a live (concurrent) view, it can be iterated while other clients join or leave the topic. When
+        some patterns match, nothing is copied: the view walks the members, then the subscribers of each pattern, and
+        skips the ones already met (a client who joined the topic and a pattern, or several patterns, is in it once).
+     */
+    public Set<ClientProcessor> getMembers(String topic) {
+        Set<ClientProcessor> members = topics.get(topic);
+        if (members == null) {
+            members = Collections.emptySet();
+        }
+        if (patterns.isEmpty()) {
+            return members; // no wildcard subscription at all, the usual case
+        }
+
+        List<Set<ClientProcessor>> sets = new ArrayList<>(4);
+        sets.add(members);
+        patterns.collect(topic, sets);
+        if (sets.size() == 1) {
+            return members;
+        }
+        return new Members(sets);
+    }// end method
+
+    public int getTopicsCount() {
+        return topics.size();
+    }
+
+    public int getPatternsCount() {
+        return patterns.getPatternsCount();
+    }
+
+    // The union of the members and of the matching patterns' subscribers, as a read-only view over their live sets.
+    // Only a few patterns match a topic, so checking the sets before the current one is cheaper than copying them.
+    private static final class Members extends AbstractSet<ClientProcessor> {
+
+        private final List<Set<ClientProcessor>> sets;
+
+        Members(List<Set<ClientProcessor>> sets) {
+            this.sets = sets;
+        }// end constructor
+
+        // Whether 'client' is in one of the sets before 'index' (so it was already met):
+        private boolean isBefore(ClientProcessor client, int index) {
+            for (int i = 0; i < index; i++) {
+                if (sets.get(i).contains(client)) {
+                    return true;
+                }
+            }
+            return false;
+        }// end method
+
+        @Override
+        public boolean contains(Object client) {
+            for (Set<ClientProcessor> set : sets) {
+                if (set.contains(client)) {
+                    return true;
+                }
+            }
+            return false;
+        }// end method
+
+        // The members, counted without walking them, and the pattern subscribers who aren't in an earlier set:
+        @Override
+        public int size() {
+            int size = sets.get(0).size();
+            for (int i = 1; i < sets.size(); i++) {
+                for (ClientProcessor client : sets.get(i)) {
+                    if (!isBefore(client, i)) {
+                        size++;
+                    }
+                }
+            }
+            return size;
+        }// end method
+
+        @Override
+        public Iterator<ClientProcessor> iterator() {
+            return new Iterator<>() {
+                private int index;
+                private Iterator<ClientProcessor> current = sets.get(0).iterator();
+                private ClientProcessor next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null) {
+                        if (current.hasNext()) {
+                            ClientProcessor client = current.next();
+                            if (index == 0 || !isBefore(client, index)) {
+                                next = client;
+                            }
+                        } else if (index + 1 < sets.size()) {
+                            current = sets.get(++index).iterator();
+                        } else {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public ClientProcessor next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    ClientProcessor client = next;
+                    next = null;
+                    return client;
+                }
+            };
+        }// end method
+    }// end class
+
+}// end class